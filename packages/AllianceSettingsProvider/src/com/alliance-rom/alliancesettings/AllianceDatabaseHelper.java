@@ -16,22 +16,16 @@
 
 package com.alliance-rom.alliancesettings;
 
-import android.content.ContentValues;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
-import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
 import android.os.Environment;
-import android.os.SystemProperties;
 import android.os.UserHandle;
-import android.provider.Settings;
-import android.text.TextUtils;
-import android.util.DisplayMetrics;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import alliance-rom.providers.AllianceSettings;
@@ -45,7 +39,7 @@ public class AllianceDatabaseHelper extends SQLiteOpenHelper {
 
     private static final boolean LOCAL_LOGV = false;
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
 git sta
     static class AllianceTableNames {
         static final String TABLE_SYSTEM = "system";
@@ -53,20 +47,37 @@ git sta
         static final String TABLE_GLOBAL = "global";
     }
 
-    private static final String CREATE_TABLE_SQL_FORMAT = "CREATE TABLE %S (" +
-            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-            "name TEXT UNIQUE ON CONFLICT REPLACE," +
+    // Keyed by name alone, so a row lives in a single B-tree and a write touches nothing else.
+    private static final String CREATE_TABLE_SQL_FORMAT = "CREATE TABLE %s (" +
+            "name TEXT PRIMARY KEY," +
             "value TEXT" +
-            ");)";
+            ") WITHOUT ROWID;";
 
-    private static final String CREATE_INDEX_SQL_FORMAT = "CREATE INDEX %sIndex%d ON %s (name);";
+    private static final String MIGRATE_TABLE_SQL_FORMAT = "INSERT OR REPLACE INTO %s (name, value) " +
+            "SELECT name, value FROM %s WHERE name IS NOT NULL ORDER BY _id;";
+    private static final String RENAME_TABLE_SQL_FORMAT = "ALTER TABLE %s RENAME TO %s;";
+    private static final String MIGRATION_TABLE_SUFFIX = "_v2";
+
+    // The platform's SQLite predates ON CONFLICT DO UPDATE. Replacing a row of a WITHOUT ROWID
+    // table only rewrites its primary key entry, which is all an update would do.
+    private static final String UPSERT_SQL_FORMAT = "INSERT OR REPLACE INTO %s (name, value) VALUES (?, ?);";
     private static final String DROP_TABLE_SQL_FORMAT = "DROP TABLE IF EXISTS %s;";
     private static final String DROP_INDEX_SQL_FORMAT = "DROP INDEX IF EXISTS %sIndex%d;";
-    private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
+    private static final String SYNC_MODE_SQL_FORMAT = "PRAGMA synchronous=%s;";
+    private static final String CHECKPOINT_SQL = "PRAGMA wal_checkpoint(PASSIVE);";
 
     private Context mContext;
     private int mUserHandle;
-    private String mPublicSrcDir;
+    private final String mWalSyncMode;
+
+    // Follows setWriteAheadLoggingEnabled, which callers may still use after construction.
+    private volatile boolean mUseWal;
+
+    // Set by every write to the log, cleared by the checkpoint that follows it.
+    private volatile boolean mNeedsCheckpoint;
+
+    // Compiled once per table against the open database. Guarded by 'this'.
+    private final ArrayMap<String, SQLiteStatement> mUpsertStatements = new ArrayMap<>();
 
     static String dbNameForUser(final int userId) {
         if (userId == UserHandle.USER_OWNER) {
@@ -77,16 +88,44 @@ git sta
         }
     }
 
+    static File getDatabaseFile(Context context, final int userId) {
+        if (userId == UserHandle.USER_OWNER) {
+            return context.getDatabasePath(DATABASE_NAME);
+        } else {
+            return new File(dbNameForUser(userId));
+        }
+    }
+
     public AllianceDatabaseHelper(Context context, int userId) {
         super(context, dbNameForUser(userId), null, DATABASE_VERSION);
         mContext = context;
         mUserHandle = userId;
 
-        try {
-            String packageName = mContext.getPackageName();
-            mPublicSrcDir = mContext.getPackageManager().getApplicationInfo(packageName, 0).publicSourceDir;
-        } catch (PackageManager.NameNotFoundException e) {
-            e.printStackTrace();
+        Resources res = context.getResources();
+        mWalSyncMode = res.getString(R.string.config_walSyncMode);
+        setWriteAheadLoggingEnabled(res.getBoolean(R.bool.config_useWriteAheadLogging));
+    }
+
+    @Override
+    public void setWriteAheadLoggingEnabled(boolean enabled) {
+        super.setWriteAheadLoggingEnabled(enabled);
+        mUseWal = enabled;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (db.isWriteAheadLoggingEnabled()) {
+            // The log only needs syncing at checkpoints to survive a power loss; a crash can lose
+            // the last commits at worst, which the write-behind state already accepts.
+            switch (mWalSyncMode) {
+                case "OFF":
+                case "NORMAL":
+                case "FULL":
+                    db.execSQL(String.format(SYNC_MODE_SQL_FORMAT, mWalSyncMode));
+                    break;
+                default:
+                    Log.w(TAG, "Ignoring invalid synchronous level: " + mWalSyncMode);
+            }
         }
     }
 
@@ -100,7 +139,7 @@ git sta
                 createDbTable(db, AllianceTableNames.TABLE_GLOBAL);
             }
 
-            loadSettings(db);
+            // Defaults are not inserted, see SettingsDefaults.
             db.setTransactionSuccessful();
 
             if (LOCAL_LOGV) {
@@ -112,11 +151,23 @@ git sta
     }
 
     private void createDbTable(SQLiteDatabase db, String tableName) {
-        if (LOCAL_LOGV) Log.d(TAG, "Creating table and index for: " + tableName);
+        if (LOCAL_LOGV) Log.d(TAG, "Creating table for: " + tableName);
         String createTableSql = String.format(CREATE_TABLE_SQL_FORMAT, tableName);
         db.execSQL(createTableSql);
-        String createIndexSql = String.format(CREATE_INDEX_SQL_FORMAT, tableName, 1, tableName);
-        db.execSQL(createIndexSql);
+    }
+
+    /**
+     * Moves a table from the version 1 layout, an autoincrement id with a unique and a plain
+     * index on name, to the version 2 layout, keeping its rows.
+     */
+    private void migrateDbTableToWithoutRowId(SQLiteDatabase db, String tableName) {
+        if (LOCAL_LOGV) Log.d(TAG, "Migrating table to version 2 layout: " + tableName);
+        final String newTableName = tableName + MIGRATION_TABLE_SUFFIX;
+        db.execSQL(String.format(CREATE_TABLE_SQL_FORMAT, newTableName));
+        // Rows without a name can not be keyed; the latest row wins for a duplicated name.
+        db.execSQL(String.format(MIGRATE_TABLE_SQL_FORMAT, newTableName, tableName));
+        dropDbTable(db, tableName);
+        db.execSQL(String.format(RENAME_TABLE_SQL_FORMAT, newTableName, tableName));
     }
 
     @Override
@@ -125,7 +176,11 @@ git sta
         if (upgradeVersion < 2) {
             db.beginTransaction();
             try {
-                loadSettings(db);
+                migrateDbTableToWithoutRowId(db, AllianceTableNames.TABLE_SYSTEM);
+                migrateDbTableToWithoutRowId(db, AllianceTableNames.TABLE_SECURE);
+                if (mUserHandle == UserHandle.USER_OWNER) {
+                    migrateDbTableToWithoutRowId(db, AllianceTableNames.TABLE_GLOBAL);
+                }
                 db.setTransactionSuccessful();
                 upgradeVersion = 2;
             } finally {
@@ -146,61 +201,87 @@ git sta
         }
     }
 
-    private void dropDbTable(SQLiteDatabase db, String tableName) {
-        if (LOCAL_LOGV) Log.d(TAG, "Dropping table and index for: " + tableName);
-        String dropTableSql = String.format(DROP_TABLE_SQL_FORMAT, tableName);
-        db.execSQL(dropTableSql);
-        String dropIndexSql = String.format(DROP_INDEX_SQL_FORMAT, tableName, 1);
-        db.execSQL(dropIndexSql);
+    /**
+     * Writes one row through the table's precompiled upsert, sparing the SQL building and
+     * ContentValues of {@link SQLiteDatabase#insert}.
+     * @return The row id of the written row, or -1 if it could not be written.
+     */
+    public long upsert(String tableName, String name, String value) {
+        SQLiteStatement statement = getUpsertStatement(tableName);
+        // Bindings live in the statement, so one write at a time per table.
+        synchronized (statement) {
+            bindStringOrNull(statement, 1, name);
+            bindStringOrNull(statement, 2, value);
+            if (mUseWal) {
+                mNeedsCheckpoint = true;
+            }
+            try {
+                return statement.executeInsert();
+            } finally {
+                statement.clearBindings();
+            }
+        }
     }
 
-    private void loadSettings(SQLiteDatabase db) {
-        //load defaults once we have some
+    /**
+     * @return Whether rows were written since the last checkpoint of the write-ahead log.
+     */
+    public boolean needsCheckpoint() {
+        return mUseWal && mNeedsCheckpoint;
     }
 
-    private void loadRegionLockedStringSetting(SQLiteDatabase db, String tableName, String name, int resId) {
-        String mcc = SystemProperties.get(MCC_PROP_NAME);
-        Resources customResources = null;
-        if (!TextUtils.isEmpty(mcc)) {
-            Configuration tempConfiguration = new Configuration();
-            boolean useTempConfig = false;
-            try {
-                tempConfiguration.mcc = Integer.parseInt(mcc);
-                useTempConfig = true;
-            } catch (NumberFormatException e) {
-                e.printStackTrace();
-            }
-            if (useTempConfig) {
-                AssetManager assetManager = new AssetManager();
-
-                if (!TextUtils.isEmpty(mPublicSrcDir)) {
-                    assetManager.addAssetPath(mPublicSrcDir);
-                }
-                customResources = new Resources(assetManager, new DisplayMetrics(), tempConfiguration);
-            }
+    /**
+     * Copies the write-ahead log back into the database without waiting on readers, so the log
+     * stays short and reads do not have to search through it.
+     */
+    public void checkpoint() {
+        if (!mUseWal) {
+            return;
         }
-
-        String value = ((customResources == null) ? mContext.getResources().getString(resId) : customResources.getString(resId));
-        loadSettingsForTable(db, tableName, name, value);
+        mNeedsCheckpoint = false;
+        Cursor cursor = getWritableDatabase().rawQuery(CHECKPOINT_SQL, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+        if (LOCAL_LOGV) Log.d(TAG, "Checkpointed write-ahead log for user " + mUserHandle);
     }
 
-    private void loadStringSetting(SQLiteDatabase db, String tableName, String name, int resId) {
-        loadSettingsForTable(db, tableName, name, mContext.getResources().getString(resId));
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < mUpsertStatements.size(); i++) {
+            mUpsertStatements.valueAt(i).close();
+        }
+        mUpsertStatements.clear();
+        super.close();
     }
 
-    private void loadBooleanSetting(SQLiteDatabase db, String tableName, String name, int resId) {
-        loadSettingsForTable(db, tableName, name, mContext.getResources().getBoolean(resId) ? "1" : "0");
+    private SQLiteStatement getUpsertStatement(String tableName) {
+        SQLiteDatabase db = getWritableDatabase();
+        synchronized (this) {
+            SQLiteStatement statement = mUpsertStatements.get(tableName);
+            if (statement == null) {
+                statement = db.compileStatement(String.format(UPSERT_SQL_FORMAT, tableName));
+                mUpsertStatements.put(tableName, statement);
+            }
+            return statement;
+        }
     }
 
-    private void loadIntegerSetting(SQLiteDatabase db, String tableName, String name, int resId) {
-        loadSettingsForTable(db, tableName, name, Integer.toString(mContext.getResources().getInteger(resId)));
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
     }
 
-    private void loadSettingsForTable(SQLiteDatabase db, String tableName, String name, String value) {
-        if (LOCAL_LOGV) Log.d(TAG, "Loading key: " + name + ", value: " + value);
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(Settings.NameValueTable.NAME, name);
-        contentValues.put(Settings.NameValueTable.VALUE, value);
-        db.insertWithOnConflict(tableName, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
+    private void dropDbTable(SQLiteDatabase db, String tableName) {
+        if (LOCAL_LOGV) Log.d(TAG, "Dropping table and index for: " + tableName);
+        String dropTableSql = String.format(DROP_TABLE_SQL_FORMAT, tableName);
+        db.execSQL(dropTableSql);
+        String dropIndexSql = String.format(DROP_INDEX_SQL_FORMAT, tableName, 1);
+        db.execSQL(dropIndexSql);
     }
 }
\ No newline at end of file
@@ -19,40 +19,72 @@ package com.alliance-rom.alliancesettings;
 import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
-import android.os.SystemProperties;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
 
 import alliancerom.providers.AllianceSettings;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 public class AllianceSettingsProvicer extends ContentProvider {
 
 	private static final String TAG = "AllianceSettingsProvider";
 	private static final String PREF_FILE_NAME = TAG;
 	private static final String PREF_HAS_MIGRATED_ALLIANCE_SETTINGS = "has_migrated_alliance_settings";
+	// Per user and table: the hash of the legacy key list last migrated, and every key migrated.
+	private static final String PREF_MIGRATED_KEYS_HASH = "migrated_keys_hash_";
+	private static final String PREF_MIGRATED_KEYS = "migrated_keys_";
+	private static final String[] MIGRATED_TABLES = new String[] {
+			AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM,
+			AllianceDatabaseHelper.AllianceTableNames.TABLE_SECURE,
+			AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL };
 	private static final String ITEM_MATCHER = "/*";
 	private static final String NAME_SELECTION = Settings.NameValueTable.NAME + " = ?";
+	private static final String STORAGE_BINARY = "binary";
+	private static final String[] LEGACY_PROJECTION = new String[] {
+			Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE };
+	private static final int MAX_MIGRATION_THREADS = 4;
 
 	private static final boolean LOCAL_LOGV = false;
 	private static final boolean USER_CHECK_THROWS = true;
@@ -76,7 +108,11 @@ public class AllianceSettingsProvicer extends ContentProvider {
 				AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL + ITEM_MATCHER, GLOBAL_ITEM_NAME);
 	}
 
-	protected final SparseArray<AllianceDatabaseHelper> mDbHelpers = new SparseArray<>();
+	// Held only long enough to find or add a user's entry. Guarded by mUsers.
+	private final SparseArray<UserSettings> mUsers = new SparseArray<>();
+
+	// Set while applyBatch() runs on a thread, to hold back its notifications until commit.
+	private final ThreadLocal<PendingChanges> mPendingChanges = new ThreadLocal<>();
 
 	private static final int SYSTEM = 1;
 	private static final int SECURE = 2;
@@ -88,18 +124,70 @@ public class AllianceSettingsProvicer extends ContentProvider {
 	private UserManager mUserManager;
 	private Uri.Builder mUriBuilder;
 	private SharedPreferences mPrefs;
+	private GenerationRegistry mGenerationRegistry;
+	private Handler mWriteHandler;
+	// Rebuilds stale snapshots, away from the threads that write.
+	private Handler mPublishHandler;
+	private long mCheckpointIdleMs;
+	private ChangeNotifier mChangeNotifier;
+	// Set when settings are persisted by BinaryLogSettingsStorage, in which case there is no
+	// database to run SQL against and the cursor operations are answered from memory.
+	private boolean mUseBinaryStorage;
+	private SettingsDefaults mSettingsDefaults;
+
+	private final Runnable mCheckpointRunnable = new Runnable() {
+		@Override
+		public void run() {
+			checkpointDatabases();
+		}
+	};
 
 	@Override
 	public boolean onCreate() {
 		if (LOCAL_LOGV) Log.d(TAG, "Creating AllianceSettingsProvider");
 		mUserManager = UserManager.get(getContext());
-		establishDbTracking(UserHandle.USER_OWNER);
+		mGenerationRegistry = new GenerationRegistry();
+		HandlerThread writerThread = new HandlerThread(TAG + "Writer",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		writerThread.start();
+		mWriteHandler = new Handler(writerThread.getLooper());
+		mCheckpointIdleMs = getContext().getResources().getInteger(R.integer.config_walCheckpointIdleMs);
+		writerThread.getLooper().getQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+			@Override
+			public boolean queueIdle() {
+				// Pushed back every time the writer goes idle, so the checkpoint only runs once
+				// the writes have stopped for a while.
+				mWriteHandler.removeCallbacks(mCheckpointRunnable);
+				if (anyDatabaseNeedsCheckpoint()) {
+					mWriteHandler.postDelayed(mCheckpointRunnable, mCheckpointIdleMs);
+				}
+				return true;
+			}
+		});
+		HandlerThread notifierThread = new HandlerThread(TAG + "Notifier",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		notifierThread.start();
+		HandlerThread publisherThread = new HandlerThread(TAG + "Publisher",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		publisherThread.start();
+		mPublishHandler = new Handler(publisherThread.getLooper());
+		mSettingsDefaults = new SettingsDefaults(getContext());
+		mChangeNotifier = new ChangeNotifier(getContext().getContentResolver(),
+				new Handler(notifierThread.getLooper()),
+				getContext().getResources().getInteger(R.integer.config_notifyDelayMs));
+		mUseBinaryStorage = STORAGE_BINARY.equals(
+				getContext().getResources().getString(R.string.config_settingsStorage));
+		if (!mUseBinaryStorage) {
+			establishDbTracking(UserHandle.USER_OWNER);
+		}
 		mUriBuilder = new Uri.Builder();
 		mUriBuilder.scheme(ContentResolver.SCHEME_CONTENT);
 		mUriBuilder.authority(AllianceSettings.AUTHORITY);
 		mPrefs = getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
 		IntentFilter userFilter = new IntentFilter();
 		userFilter.addAction(Intent.ACTION_USER_REMOVED);
+		userFilter.addAction(Intent.ACTION_USER_SWITCHED);
+		userFilter.addAction(Intent.ACTION_SHUTDOWN);
 		getContext().registerReceiver(new BroadcastReceiver() {
 			@Override
 			public void onReceive(Context context, Intent intent) {
@@ -108,27 +196,80 @@ public class AllianceSettingsProvicer extends ContentProvider {
 				if (LOCAL_LOGV) Log.d(TAG, "Received intent: " + action + " for user: " + userId);
 				if (action.equals(Intent.ACTION_USER_REMOVED)) {
 					onUserRemoved(userId);
+				} else if (action.equals(Intent.ACTION_USER_SWITCHED)
+						|| action.equals(Intent.ACTION_SHUTDOWN)) {
+					flushAllSettingsStates();
 				}
 			}
 		}, userFilter);
 		return true;
 	}
 
-	private void migrateAllianceSettingsForExistingUsersIfNeeded() {
-		boolean hasMigratedAllianceSettings = mPrefs.getBoolean(PREF_HAS_MIGRATED_ALLIANCE_SETTINGS, false);
-		if (!hasMigratedAllianceSettings) {
-			long startTime = System.currentTimeMillis();
-			for (UserInfo user : mUserManager.getUsers()) {
-				migrateAllianceSettingsForUser(user.id);
+	/**
+	 * @return The users still not migrated afterwards, whose tables did not all reach their
+	 * checkpoint.
+	 */
+	private int[] migrateAllianceSettingsForExistingUsersIfNeeded() {
+		convertLegacyMigrationFlagIfNeeded();
+		long startTime = SystemClock.uptimeMillis();
+		ArrayList<Integer> pendingUsers = new ArrayList<>();
+		for (UserInfo user : getUsers()) {
+			if (needsMigration(user.id)) {
+				pendingUsers.add(user.id);
 			}
-			mPrefs.edit().putBoolean(PREF_HAS_MIGRATED_ALLIANCE_SETTINGS, true).commit();
-			long timeDiffMillis = System.currentTimeMillis() - startTime;
-			if (LOCAL_LOGV) Log.d(TAG, "Migration finished in " + timeDiffMillis + " milliseconds");
 		}
+		if (pendingUsers.isEmpty()) {
+			return new int[0];
+		}
+
+		// Users hold separate locks and databases, so they migrate side by side.
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(pendingUsers.size(), MAX_MIGRATION_THREADS));
+		ArrayList<Future<?>> migrations = new ArrayList<>(pendingUsers.size());
+		for (final int userId : pendingUsers) {
+			migrations.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					migrateAllianceSettingsForUser(userId);
+				}
+			}));
+		}
+		try {
+			for (int i = 0; i < migrations.size(); i++) {
+				try {
+					migrations.get(i).get();
+				} catch (ExecutionException e) {
+					// Whatever did finish is checkpointed and is not redone on the next attempt.
+					Log.e(TAG, "Failed to migrate Alliance settings for user "
+							+ pendingUsers.get(i), e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdown();
+		}
+		long timeDiffMillis = SystemClock.uptimeMillis() - startTime;
+		Log.i(TAG, "Migration of " + pendingUsers.size() + " user(s) finished in " + timeDiffMillis
+				+ " milliseconds");
+
+		int[] remainingUsers = new int[pendingUsers.size()];
+		int remainingCount = 0;
+		for (int userId : pendingUsers) {
+			if (needsMigration(userId)) {
+				remainingUsers[remainingCount++] = userId;
+			}
+		}
+		return Arrays.copyOf(remainingUsers, remainingCount);
 	}
 
 	private void migrateAllianceSettingsForUser(int userId) {
-		synchronized (this) {
+		convertLegacyMigrationFlagIfNeeded();
+		synchronized (getOrCreateUserSettings(userId).mMigrationLock) {
+			if (!needsMigration(userId)) {
+				return;
+			}
+			final long startTime = SystemClock.uptimeMillis();
 			if (LOCAL_LOGV) Log.d(TAG, "Alliance settings will be migrated for user id: " + userId);
 			int rowsMigrated = migrateAllianceSettingsForTable(userId, AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM,
 				AllianceSettings.System.LEGACY_SYSTEM_SETTINGS);
@@ -139,43 +280,215 @@ public class AllianceSettingsProvicer extends ContentProvider {
 			rowsMigrated = migrateAllianceSettingsForTable(userId, AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL,
 				AllianceSettings.Global.LEGACY_GLOBAL_SETTINGS);
 			if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to Alliance global table");
+			Log.i(TAG, "Migrated Alliance settings for user " + userId + " in "
+					+ (SystemClock.uptimeMillis() - startTime) + " milliseconds");
 		}
 	}
 
+	/**
+	 * Migrates the keys of the legacy list that were not migrated into the table yet, and
+	 * checkpoints the table once they are in.
+	 */
 	private int migrateAllianceSettingsForTable(int userId, String tableName, String[] settings) {
-		ContentResolver resolver = getContext().getContentResolver();
-		ContentValues[] contentValues = new ContentValues[settings.length];
-		int migrateSettingsCount = 0;
+		if (isTableMigrated(userId, tableName, settings)) {
+			return 0;
+		}
+		final String checkpoint = getMigrationCheckpoint(userId, tableName);
+		ArraySet<String> migratedKeys = new ArraySet<>(mPrefs.getStringSet(
+				PREF_MIGRATED_KEYS + checkpoint, Collections.<String>emptySet()));
+		ArrayList<String> pendingKeys = new ArrayList<>(settings.length);
 		for (String settingsKey : settings) {
-			String settingsValue = null;
-			if (tableName.equals(AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM)) {
-				settingsValue = Settings.System.getStringForUser(resolver, settingsKey, userId);
-			} else if (tableName.equals(AllianceDatabaseHelper.AllianceTableNames.TABLE_SECURE)) {
-				settingsValue = Settings.Secure.getStringForUser(resolver, settingsKey, userId);
-			} else if (tableName.equals(AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL)) {
-				settingsValue = Settings.Global.getStringForUser(resolver, settingsKey, userId);
+			if (!migratedKeys.contains(settingsKey)) {
+				pendingKeys.add(settingsKey);
 			}
+		}
+
+		int rowsInserted = 0;
+		if (!pendingKeys.isEmpty()) {
+			rowsInserted = insertLegacySettings(userId, tableName, pendingKeys);
+			migratedKeys.addAll(pendingKeys);
+			// The rows are only in memory until the state flushes them, which a crash would
+			// prevent, so they are persisted before the checkpoint claims they are. Throws if
+			// they could not be, leaving the table to be redone on the next boot.
+			getOrEstablishSettingsState(getUserIdForTable(tableName, userId), tableName).flush();
+		}
+		// Committed only after the rows are stored, so a table cut short is redone on the next
+		// boot.
+		mPrefs.edit()
+				.putInt(PREF_MIGRATED_KEYS_HASH + checkpoint, Arrays.hashCode(settings))
+				.putStringSet(PREF_MIGRATED_KEYS + checkpoint, migratedKeys)
+				.commit();
+		return rowsInserted;
+	}
+
+	/**
+	 * Copies the legacy values of the keys into the table. Keys the schema does not declare
+	 * are copied as they are, since there is nothing to check them against, while declared
+	 * keys holding a value their validator rejects are left behind rather than failing the
+	 * migration on every boot.
+	 */
+	private int insertLegacySettings(int userId, String tableName, List<String> settings) {
+		ArrayMap<String, String> legacyValues = readLegacySettings(userId, tableName);
+		AllianceSettings.Schema schema = getSchemaForTable(tableName);
+		ArrayList<ContentValues> contentValues = new ArrayList<>(settings.size());
+		int rowsSkipped = 0;
+		for (String settingsKey : settings) {
+			String settingsValue = legacyValues.get(settingsKey);
 			if (LOCAL_LOGV) Log.d(TAG, "Table: " + tableName + ", Key: " + settingsKey + ", Value: " + settingsValue);
+			final int keyId = schema.getKeyId(settingsKey);
+			if (keyId != AllianceSettings.Schema.UNKNOWN_KEY
+					&& !schema.validate(keyId, settingsValue)) {
+				if (LOCAL_LOGV) Log.d(TAG, "Skipping invalid value of " + settingsKey);
+				rowsSkipped++;
+				continue;
+			}
 			ContentValues contentValue = new ContentValues();
 			contentValue.put(Settings.NameValueTable.NAME, settingsKey);
 			contentValue.put(Settings.NameValueTable.VALUE, settingsValue);
-			contentValues[migrateSettingsCount++] = contentValue;
+			contentValues.add(contentValue);
+		}
+		if (rowsSkipped > 0) {
+			Log.w(TAG, "Skipped " + rowsSkipped + " invalid legacy " + tableName
+					+ " setting(s) for user " + userId);
 		}
 
 		int rowsInserted = 0;
-		if (contentValues.length > 0) {
+		if (!contentValues.isEmpty()) {
 			Uri uri = mUriBuilder.build();
 			uri = uri.buildUpon().appendPath(tableName).build();
-			rowsInserted = bulkInsertForUser(userId, uri, contentValues);
+			rowsInserted = insertRowsForUser(userId, uri, tableName,
+					contentValues.toArray(new ContentValues[contentValues.size()]));
 		}
 		return rowsInserted;
 	}
 
+	/**
+	 * Reads a table of the platform settings for the user with a single query. The platform
+	 * provider only filters on a single name, so the whole table is read and the caller picks
+	 * the keys it wants.
+	 */
+	private ArrayMap<String, String> readLegacySettings(int userId, String tableName) {
+		Uri uri;
+		if (tableName.equals(AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM)) {
+			uri = ContentProvider.maybeAddUserId(Settings.System.CONTENT_URI, userId);
+		} else if (tableName.equals(AllianceDatabaseHelper.AllianceTableNames.TABLE_SECURE)) {
+			uri = ContentProvider.maybeAddUserId(Settings.Secure.CONTENT_URI, userId);
+		} else {
+			uri = Settings.Global.CONTENT_URI;
+		}
+
+		ArrayMap<String, String> values = new ArrayMap<>();
+		Cursor cursor = getContext().getContentResolver().query(uri, LEGACY_PROJECTION,
+				null, null, null);
+		if (cursor == null) {
+			Log.w(TAG, "Can't read legacy " + tableName + " settings for user " + userId);
+			return values;
+		}
+		try {
+			values.ensureCapacity(cursor.getCount());
+			while (cursor.moveToNext()) {
+				values.put(cursor.getString(0), cursor.getString(1));
+			}
+		} finally {
+			cursor.close();
+		}
+		return values;
+	}
+
+	private boolean needsMigration(int userId) {
+		return !isTableMigrated(userId, AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM,
+					AllianceSettings.System.LEGACY_SYSTEM_SETTINGS)
+				|| !isTableMigrated(userId, AllianceDatabaseHelper.AllianceTableNames.TABLE_SECURE,
+					AllianceSettings.Secure.LEGACY_SECURE_SETTINGS)
+				|| !isTableMigrated(userId, AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL,
+					AllianceSettings.Global.LEGACY_GLOBAL_SETTINGS);
+	}
+
+	/**
+	 * @return Whether the table was checkpointed with exactly this legacy key list.
+	 */
+	private boolean isTableMigrated(int userId, String tableName, String[] settings) {
+		final String key = PREF_MIGRATED_KEYS_HASH + getMigrationCheckpoint(userId, tableName);
+		return mPrefs.contains(key) && mPrefs.getInt(key, 0) == Arrays.hashCode(settings);
+	}
+
+	private static String getMigrationCheckpoint(int userId, String tableName) {
+		return tableName + "_" + userId;
+	}
+
+	/**
+	 * Earlier builds recorded no checkpoints, only a single flag once every user was migrated.
+	 * If it is set, the current key lists are taken as migrated for every existing
+	 * user, rather than migrating them again over values that may have changed since.
+	 */
+	private synchronized void convertLegacyMigrationFlagIfNeeded() {
+		if (!mPrefs.getBoolean(PREF_HAS_MIGRATED_ALLIANCE_SETTINGS, false)) {
+			return;
+		}
+		SharedPreferences.Editor editor = mPrefs.edit();
+		for (UserInfo user : getUsers()) {
+			checkpointLegacyTable(editor, user.id,
+					AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM,
+					AllianceSettings.System.LEGACY_SYSTEM_SETTINGS);
+			checkpointLegacyTable(editor, user.id,
+					AllianceDatabaseHelper.AllianceTableNames.TABLE_SECURE,
+					AllianceSettings.Secure.LEGACY_SECURE_SETTINGS);
+			checkpointLegacyTable(editor, user.id,
+					AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL,
+					AllianceSettings.Global.LEGACY_GLOBAL_SETTINGS);
+		}
+		editor.remove(PREF_HAS_MIGRATED_ALLIANCE_SETTINGS).commit();
+	}
+
+	private void checkpointLegacyTable(SharedPreferences.Editor editor, int userId,
+			String tableName, String[] settings) {
+		final String checkpoint = getMigrationCheckpoint(userId, tableName);
+		if (!mPrefs.contains(PREF_MIGRATED_KEYS_HASH + checkpoint)) {
+			editor.putInt(PREF_MIGRATED_KEYS_HASH + checkpoint, Arrays.hashCode(settings));
+			editor.putStringSet(PREF_MIGRATED_KEYS + checkpoint,
+					new ArraySet<>(Arrays.asList(settings)));
+		}
+	}
+
+	private List<UserInfo> getUsers() {
+		final long token = Binder.clearCallingIdentity();
+		try {
+			return mUserManager.getUsers();
+		} finally {
+			Binder.restoreCallingIdentity(token);
+		}
+	}
+
 	private void onUserRemoved(int userId) {
-		synchronized (this) {
-			mDbHelpers.delete(userId);
-			if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
+		UserSettings user;
+		synchronized (mUsers) {
+			user = mUsers.get(userId);
+			mUsers.delete(userId);
 		}
+		if (user != null) {
+			synchronized (user) {
+				for (SettingsState state : user.mStates) {
+					if (state != null) {
+						state.discard();
+					}
+				}
+				for (SettingsSnapshot snapshot : user.mSnapshots) {
+					if (snapshot != null) {
+						snapshot.close();
+					}
+				}
+			}
+		}
+		mGenerationRegistry.onUserRemoved(userId);
+		// A user created later under the same id starts over.
+		SharedPreferences.Editor editor = mPrefs.edit();
+		for (String tableName : MIGRATED_TABLES) {
+			final String checkpoint = getMigrationCheckpoint(userId, tableName);
+			editor.remove(PREF_MIGRATED_KEYS_HASH + checkpoint);
+			editor.remove(PREF_MIGRATED_KEYS + checkpoint);
+		}
+		editor.apply();
+		if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
 	}
 
 	@Override
@@ -192,8 +505,10 @@ public class AllianceSettingsProvicer extends ContentProvider {
 		}
 
 		if (AllianceSettings.CALL_METHOD_MIGRATE_SETTINGS.equals(method)) {
-			migrateAllianceSettingsForExistingUsersIfNeeded();
-			return null;
+			Bundle result = new Bundle();
+			result.putIntArray(AllianceSettings.CALL_METHOD_PENDING_USERS_KEY,
+					migrateAllianceSettingsForExistingUsersIfNeeded());
+			return result;
 		} else if (AllianceSettings.CALL_METHOD_MIGRATE_SETTINGS_FOR_USER.equals(method)) {
 			migrateAllianceSettingsForUser(callingUserId);
 			return null;
@@ -207,6 +522,41 @@ public class AllianceSettingsProvicer extends ContentProvider {
             return lookupSingleValue(callingUserId, AllianceSettings.Global.CONTENT_URI, request);
         }
 
+        if (AllianceSettings.CALL_METHOD_GET_GENERATION.equals(method)) {
+            return getGenerationDescriptor(callingUserId, request);
+        } else if (AllianceSettings.CALL_METHOD_GET_SNAPSHOT.equals(method)) {
+            return getSnapshotDescriptor(callingUserId, request);
+        } else if (AllianceSettings.CALL_METHOD_LIST_CHANGES.equals(method)) {
+            final long generation = (args == null) ? -1
+                    : args.getLong(AllianceSettings.CALL_METHOD_GENERATION_KEY, -1);
+            return lookupChangesSince(callingUserId, request, generation);
+        }
+
+        if (AllianceSettings.CALL_METHOD_GET_MULTIPLE_SYSTEM.equals(method)
+                || AllianceSettings.CALL_METHOD_GET_MULTIPLE_SECURE.equals(method)
+                || AllianceSettings.CALL_METHOD_GET_MULTIPLE_GLOBAL.equals(method)) {
+            final String[] names = (args == null) ? null
+                    : args.getStringArray(AllianceSettings.CALL_METHOD_NAMES_KEY);
+            if (names == null) {
+                throw new IllegalArgumentException("Names cannot be null");
+            }
+            if (AllianceSettings.CALL_METHOD_GET_MULTIPLE_SYSTEM.equals(method)) {
+                return lookupMultipleValues(callingUserId, AllianceSettings.System.CONTENT_URI, names);
+            } else if (AllianceSettings.CALL_METHOD_GET_MULTIPLE_SECURE.equals(method)) {
+                return lookupMultipleValues(callingUserId, AllianceSettings.Secure.CONTENT_URI, names);
+            } else {
+                return lookupMultipleValues(callingUserId, AllianceSettings.Global.CONTENT_URI, names);
+            }
+        }
+
+        if (AllianceSettings.CALL_METHOD_LIST_SYSTEM.equals(method)) {
+            return lookupAllValues(callingUserId, AllianceSettings.System.CONTENT_URI);
+        } else if (AllianceSettings.CALL_METHOD_LIST_SECURE.equals(method)) {
+            return lookupAllValues(callingUserId, AllianceSettings.Secure.CONTENT_URI);
+        } else if (AllianceSettings.CALL_METHOD_LIST_GLOBAL.equals(method)) {
+            return lookupAllValues(callingUserId, AllianceSettings.Global.CONTENT_URI);
+        }
+
         final String newValue = (args == null) ? null : args.getString(Settings.NameValueTable.VALUE);
 
         if (getContext().checkCallingOrSelfPermission("android.permission.WRITE_ALLIANCE_SETTINGS") != PackageManager.PERMISSION_GRANTED) {
@@ -214,6 +564,23 @@ public class AllianceSettingsProvicer extends ContentProvider {
                             "android.permission.WRITE_ALLIANCE_SETTINGS"));
         }
 
+        final boolean notifySync = (args != null)
+                && args.getBoolean(AllianceSettings.CALL_METHOD_NOTIFY_SYNC_KEY, false);
+
+        if (AllianceSettings.CALL_METHOD_PUT_MULTIPLE_SYSTEM.equals(method)) {
+            insertMultipleForUser(callingUserId, AllianceSettings.System.CONTENT_URI, args);
+            flushNotificationsIf(notifySync);
+            return null;
+        } else if (AllianceSettings.CALL_METHOD_PUT_MULTIPLE_SECURE.equals(method)) {
+            insertMultipleForUser(callingUserId, AllianceSettings.Secure.CONTENT_URI, args);
+            flushNotificationsIf(notifySync);
+            return null;
+        } else if (AllianceSettings.CALL_METHOD_PUT_MULTIPLE_GLOBAL.equals(method)) {
+            insertMultipleForUser(callingUserId, AllianceSettings.Global.CONTENT_URI, args);
+            flushNotificationsIf(notifySync);
+            return null;
+        }
+
         final ContentValues values = new ContentValues();
         values.put(Settings.NameValueTable.NAME, request);
         values.put(Settings.NameValueTable.VALUE, newValue);
@@ -225,29 +592,164 @@ public class AllianceSettingsProvicer extends ContentProvider {
         } else if (AllianceSettings.CALL_METHOD_PUT_GLOBAL.equals(method)) {
             insertForUser(callingUserId, AllianceSettings.Global.CONTENT_URI, values);
         }
+        flushNotificationsIf(notifySync);
         return null;
     }
 
+    private void flushNotificationsIf(boolean notifySync) {
+        if (notifySync) {
+            mChangeNotifier.flush();
+        }
+    }
+
     private Bundle lookupSingleValue(int userId, Uri uri, String key) {
-        Cursor cursor = null;
+        String tableName = getTableNameFromUri(uri);
         try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
+            String value = getOrEstablishSettingsState(getUserIdForTable(tableName, userId),
+                    tableName).getValue(key);
+            return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE, value);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
+        }
+    }
 
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE, value);
+    /**
+     * Reads the given keys of a table for the given user, tagged with the table version they
+     * were read at.  Keys without a row come back as null.
+     */
+    private Bundle lookupMultipleValues(int userId, Uri uri, String[] names) {
+        String tableName = getTableNameFromUri(uri);
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        long version = mGenerationRegistry.getGeneration(tableUserId, tableName);
+
+        String[] values = new String[names.length];
+        try {
+            SettingsState state = getOrEstablishSettingsState(tableUserId, tableName);
+            for (int i = 0; i < names.length; i++) {
+                values[i] = state.getValue(names[i]);
             }
         } catch (SQLiteException e) {
             Log.w(TAG, "settings lookup error", e);
             return null;
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putStringArray(AllianceSettings.CALL_METHOD_VALUES_KEY, values);
+        bundle.putLong(AllianceSettings.CALL_METHOD_GENERATION_KEY, version);
+        return bundle;
+    }
+
+    /**
+     * Reads every row of a table for the given user, tagged with the table version it was read
+     * at so that clients can fill their caches in one round trip.
+     */
+    private Bundle lookupAllValues(int userId, Uri uri) {
+        String tableName = getTableNameFromUri(uri);
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        // Read the version before the rows: if a write lands in between, the client sees the
+        // version move on and simply drops what it was given.
+        long version = mGenerationRegistry.getGeneration(tableUserId, tableName);
+
+        ArrayMap<String, String> rows;
+        try {
+            rows = getOrEstablishSettingsState(tableUserId, tableName).getAll();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings list error", e);
+            return null;
+        }
+
+        final int count = rows.size();
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = rows.keyAt(i);
+            values[i] = rows.valueAt(i);
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putStringArray(AllianceSettings.CALL_METHOD_NAMES_KEY, names);
+        bundle.putStringArray(AllianceSettings.CALL_METHOD_VALUES_KEY, values);
+        bundle.putLong(AllianceSettings.CALL_METHOD_GENERATION_KEY, version);
+        if (LOCAL_LOGV) Log.d(TAG, tableName + ": listed " + count + " row(s) at " + version);
+        return bundle;
+    }
+
+    /**
+     * Hands out a read-only descriptor for the generation counters of the given table, which
+     * clients map once and poll instead of asking us whether their cache is still current.
+     */
+    private Bundle getGenerationDescriptor(int userId, String tableName) {
+        final int index = GenerationRegistry.getIndexForTable(tableName);
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            Bundle bundle = new Bundle();
+            bundle.putParcelable(AllianceSettings.CALL_METHOD_GENERATION_FD_KEY,
+                    mGenerationRegistry.getReadOnlyDescriptor(getUserIdForTable(tableName, userId)));
+            bundle.putInt(AllianceSettings.CALL_METHOD_GENERATION_INDEX_KEY, index);
+            return bundle;
+        } catch (IllegalStateException | IOException e) {
+            // Clients fall back to uncached reads rather than see this as a crash.
+            Log.w(TAG, "Unable to publish generation of " + tableName, e);
+            return null;
         } finally {
-            if (cursor != null) {
-                cursor.close();
+            Binder.restoreCallingIdentity(oldId);
+        }
+    }
+
+    /**
+     * Hands out a read-only descriptor for the published snapshot of the given table, which
+     * clients map once and read values from without calling us.
+     */
+    private Bundle getSnapshotDescriptor(int userId, String tableName) {
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            Bundle bundle = new Bundle();
+            bundle.putParcelable(AllianceSettings.CALL_METHOD_SNAPSHOT_FD_KEY,
+                    getOrEstablishSnapshot(tableUserId, tableName).getReadOnlyDescriptor());
+            return bundle;
+        } catch (IllegalStateException | SQLiteException | IOException e) {
+            Log.w(TAG, "Unable to publish snapshot of " + tableName, e);
+            return null;
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+    }
+
+    /**
+     * Lists the keys of a table written since the given generation together with their current
+     * values, so that clients can bring their caches up to date without dropping anything.
+     */
+    private Bundle lookupChangesSince(int userId, String tableName, long generation) {
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        long[] currentGeneration = new long[1];
+        String[] names = mGenerationRegistry.getChangesSince(tableUserId, tableName, generation,
+                currentGeneration);
+
+        Bundle bundle = new Bundle();
+        bundle.putLong(AllianceSettings.CALL_METHOD_GENERATION_KEY, currentGeneration[0]);
+        if (names == null) {
+            bundle.putBoolean(AllianceSettings.CALL_METHOD_RESYNC_KEY, true);
+        } else {
+            // Memory is written before the generation moves, so these values are at least as
+            // new as the generation returned with them.
+            String[] values = new String[names.length];
+            try {
+                SettingsState state = getOrEstablishSettingsState(tableUserId, tableName);
+                for (int i = 0; i < names.length; i++) {
+                    values[i] = state.getValue(names[i]);
+                }
+                bundle.putStringArray(AllianceSettings.CALL_METHOD_VALUES_KEY, values);
+            } catch (SQLiteException e) {
+                // The names alone still let the caller drop what changed.
+                Log.w(TAG, "settings lookup error", e);
             }
+            bundle.putStringArray(AllianceSettings.CALL_METHOD_NAMES_KEY, names);
         }
-        return NULL_SETTING;
+        if (LOCAL_LOGV) Log.d(TAG, tableName + ": changes since " + generation + " up to "
+                + currentGeneration[0] + ": " + (names == null ? "resync" : names.length));
+        return bundle;
     }
 
     @Override
@@ -262,7 +764,22 @@ public class AllianceSettingsProvicer extends ContentProvider {
 
         int code = sUriMatcher.match(uri);
         String tableName = getTableNameFromUriMatchCode(code);
-        AllianceDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        if (mUseBinaryStorage || (!isInBatch() && sortOrder == null
+                && isInMemorySelection(uri, selection, selectionArgs))) {
+            // Also taken with a database, as only the state overlays the defaults.
+            SettingsState state = getOrEstablishSettingsState(tableUserId, tableName);
+            MatrixCursor cursor = queryInMemory(state, uri, projection, selection, selectionArgs);
+            cursor.setNotificationUri(getContext().getContentResolver(), uri, userId);
+            return cursor;
+        }
+        if (!isInBatch()) {
+            // Let the query see writes still waiting in memory.  Not needed within a batch,
+            // which flushed the tables it touches before it started. Arbitrary SQL only sees
+            // the rows that were written, not the defaults.
+            getOrEstablishSettingsState(tableUserId, tableName).flush();
+        }
+        AllianceDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
         SQLiteDatabase db = dbHelper.getReadableDatabase();
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         queryBuilder.setTables(tableName);
@@ -283,6 +800,67 @@ public class AllianceSettingsProvicer extends ContentProvider {
         return returnCursor;
     }
 
+    /**
+     * Answers a query from the in-memory table, for storage that can not run SQL. Only the
+     * selections the settings clients use are understood: none, or a single name.
+     */
+    private MatrixCursor queryInMemory(SettingsState state, Uri uri, String[] projection,
+            String selection, String[] selectionArgs) {
+        if (projection == null) {
+            projection = new String[] { Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE };
+        }
+        String[] names = getSelectedNames(state, uri, selection, selectionArgs);
+        MatrixCursor cursor = new MatrixCursor(projection, names.length);
+        Object[] row = new Object[projection.length];
+        for (String name : names) {
+            if (!state.containsKey(name)) {
+                continue;
+            }
+            for (int i = 0; i < projection.length; i++) {
+                if (Settings.NameValueTable.NAME.equals(projection[i])) {
+                    row[i] = name;
+                } else if (Settings.NameValueTable.VALUE.equals(projection[i])) {
+                    row[i] = state.getValue(name);
+                } else {
+                    throw new IllegalArgumentException("Invalid column: " + projection[i]);
+                }
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * @return The names an in-memory operation applies to, which need not all exist.
+     */
+    private String[] getSelectedNames(SettingsState state, Uri uri, String selection,
+            String[] selectionArgs) {
+        if (isItemUri(sUriMatcher.match(uri))) {
+            return new String[] { uri.getLastPathSegment() };
+        } else if (TextUtils.isEmpty(selection)) {
+            ArrayMap<String, String> rows = state.getAll();
+            return rows.keySet().toArray(new String[rows.size()]);
+        } else if (isNameSelection(selection) && selectionArgs != null
+                && selectionArgs.length == 1) {
+            return new String[] { selectionArgs[0] };
+        }
+        throw new IllegalArgumentException("Unsupported selection: " + selection);
+    }
+
+    /**
+     * @return Whether {@link #getSelectedNames} understands the selection.
+     */
+    private boolean isInMemorySelection(Uri uri, String selection,
+            String[] selectionArgs) {
+        return isItemUri(sUriMatcher.match(uri)) || TextUtils.isEmpty(selection)
+                || (isNameSelection(selection) && selectionArgs != null
+                        && selectionArgs.length == 1);
+    }
+
+    private static boolean isNameSelection(String selection) {
+        return selection.replace(" ", "").equalsIgnoreCase(Settings.NameValueTable.NAME + "=?");
+    }
+
     @Override
     public String getType(Uri uri) {
         int code = sUriMatcher.match(uri);
@@ -307,32 +885,72 @@ public class AllianceSettingsProvicer extends ContentProvider {
         if (values == null) {
             throw new IllegalArgumentException("ContentValues cannot be null");
         }
-        int numRowsAffected = 0;
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
-        AllianceDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        for (ContentValues value : values) {
+            if (value == null) {
+                continue;
+            }
+            // Names key the table, so a row without one can not be stored.
+            final String name = value.getAsString(Settings.NameValueTable.NAME);
+            if (name == null) {
+                throw new IllegalArgumentException("Setting name cannot be null");
+            }
+            // Up front, so an invalid row fails the batch before any of it is written.
+            validateSettingNameValue(tableName, name,
+                    value.getAsString(Settings.NameValueTable.VALUE));
+        }
+        return insertRowsForUser(userId, uri, tableName, values);
+    }
 
-        db.beginTransaction();
-        try {
+    /**
+     * Writes rows that were already checked, with a single change notification for the table.
+     *
+     * @return The number of rows written.
+     */
+    private int insertRowsForUser(int userId, Uri uri, String tableName, ContentValues[] values) {
+        int numRowsAffected = 0;
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        String[] names = new String[values.length];
+
+        if (writesThroughDatabase()) {
+            AllianceDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+            db.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    if (value == null) {
+                        continue;
+                    }
+                    final String name = value.getAsString(Settings.NameValueTable.NAME);
+                    long rowId = dbHelper.upsert(tableName, name,
+                            value.getAsString(Settings.NameValueTable.VALUE));
+                    if (rowId >= 0) {
+                        names[numRowsAffected++] = name;
+                    } else {
+                        return 0;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } else {
+            String[] newValues = new String[values.length];
             for (ContentValues value : values) {
                 if (value == null) {
                     continue;
                 }
-                long rowId = db.insert(tableName, null, value);
-                if (rowId >= 0) {
-                    numRowsAffected++;
-                } else {
-                    return 0;
-                }
+                names[numRowsAffected] = value.getAsString(Settings.NameValueTable.NAME);
+                newValues[numRowsAffected++] = value.getAsString(Settings.NameValueTable.VALUE);
             }
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
+            getOrEstablishSettingsState(tableUserId, tableName).putAll(
+                    Arrays.copyOf(names, numRowsAffected), Arrays.copyOf(newValues, numRowsAffected));
         }
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, userId);
+            notifyChange(uri, tableName, userId, Arrays.copyOf(names, numRowsAffected));
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
         }
 
@@ -355,26 +973,143 @@ public class AllianceSettingsProvicer extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        AllianceDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        final int tableUserId = getUserIdForTable(tableName, userId);
 
         final String name = values.getAsString(Settings.NameValueTable.NAME);
-        if (AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM.equals(tableName)) {
-            final String value = values.getAsString(Settings.NameValueTable.VALUE);
-            validateSystemSettingNameValue(name, value);
+        final String value = values.getAsString(Settings.NameValueTable.VALUE);
+        if (name == null) {
+            throw new IllegalArgumentException("Setting name cannot be null");
         }
+        validateSettingNameValue(tableName, name, value);
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
-
-        Uri returnUri = null;
-        if (rowId > -1) {
-            returnUri = Uri.withAppendedPath(uri, name);
-            notifyChange(returnUri, tableName, userId);
-            if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " + tableName);
+        if (writesThroughDatabase()) {
+            if (getOrEstablishDatabase(tableUserId).upsert(tableName, name, value) < 0) {
+                return null;
+            }
+        } else {
+            getOrEstablishSettingsState(tableUserId, tableName).put(name, value);
         }
+
+        Uri returnUri = Uri.withAppendedPath(uri, name);
+        notifyChange(returnUri, tableName, userId, new String[] { name });
+        if (LOCAL_LOGV) Log.d(TAG, "Inserted " + name + " into tableName: " + tableName);
         return returnUri;
     }
 
+    /**
+     * Writes the name/value pairs of a batch put.  Every pair is validated before anything is
+     * written, and the rows go in as one transaction with one generation bump and one change
+     * notification for the table.
+     */
+    private int insertMultipleForUser(int userId, Uri uri, Bundle args) {
+        final String[] names = (args == null) ? null
+                : args.getStringArray(AllianceSettings.CALL_METHOD_NAMES_KEY);
+        final String[] newValues = (args == null) ? null
+                : args.getStringArray(AllianceSettings.CALL_METHOD_VALUES_KEY);
+        if (names == null || newValues == null || names.length != newValues.length) {
+            throw new IllegalArgumentException("Names and values must be non-null and of equal length");
+        }
+
+        ContentValues[] values = new ContentValues[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Settings.NameValueTable.NAME, names[i]);
+            values[i].put(Settings.NameValueTable.VALUE, newValues[i]);
+        }
+        return bulkInsertForUser(userId, uri, values);
+    }
+
+    /**
+     * Applies the whole batch inside one transaction per affected database, so the operations
+     * share a single commit, and each affected table moves to a new generation and each
+     * affected uri is notified only once, after the commit.
+     *
+     * Without a database the batch is written within a batch of the table's state instead,
+     * which persists it as a single log record. Tables are logged separately, so such a batch
+     * may only affect a single table of a single user.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final int callingUserId = UserHandle.getCallingUserId();
+        if (mUseBinaryStorage) {
+            return applyBatchInMemory(operations, callingUserId);
+        }
+        // Keyed by user, so every batch opens its transactions in the same order.
+        SparseArray<SQLiteDatabase> databases = new SparseArray<>();
+        for (ContentProviderOperation operation : operations) {
+            String tableName = getTableNameFromUri(operation.getUri());
+            int userId = getUserIdForTable(tableName, callingUserId);
+            // The operations run against the database, which must not miss any writes still
+            // waiting in memory.
+            getOrEstablishSettingsState(userId, tableName).flush();
+            if (databases.get(userId) == null) {
+                databases.put(userId, getOrEstablishDatabase(userId).getWritableDatabase());
+            }
+        }
+
+        PendingChanges pending = new PendingChanges();
+        ContentProviderResult[] results;
+        for (int i = 0; i < databases.size(); i++) {
+            databases.valueAt(i).beginTransaction();
+        }
+        mPendingChanges.set(pending);
+        try {
+            results = super.applyBatch(operations);
+            for (int i = 0; i < databases.size(); i++) {
+                databases.valueAt(i).setTransactionSuccessful();
+            }
+        } finally {
+            mPendingChanges.remove();
+            for (int i = databases.size() - 1; i >= 0; i--) {
+                databases.valueAt(i).endTransaction();
+            }
+        }
+
+        pending.dispatch();
+        if (LOCAL_LOGV) Log.d(TAG, "Applied batch of " + operations.size() + " operation(s)");
+        return results;
+    }
+
+    private ContentProviderResult[] applyBatchInMemory(
+            ArrayList<ContentProviderOperation> operations, int callingUserId)
+            throws OperationApplicationException {
+        SettingsState state = null;
+        for (ContentProviderOperation operation : operations) {
+            String tableName = getTableNameFromUri(operation.getUri());
+            SettingsState operationState = getOrEstablishSettingsState(
+                    getUserIdForTable(tableName, callingUserId), tableName);
+            if (state != null && state != operationState) {
+                throw new OperationApplicationException(
+                        "A batch may only affect a single table without a database");
+            }
+            state = operationState;
+        }
+        if (state == null) {
+            return new ContentProviderResult[0];
+        }
+
+        PendingChanges pending = new PendingChanges();
+        ContentProviderResult[] results;
+        boolean committed = false;
+        state.beginBatch();
+        mPendingChanges.set(pending);
+        try {
+            results = super.applyBatch(operations);
+            state.commitBatch();
+            committed = true;
+        } finally {
+            mPendingChanges.remove();
+            if (!committed) {
+                state.abortBatch();
+            }
+        }
+
+        pending.dispatch();
+        if (LOCAL_LOGV) Log.d(TAG, "Applied batch of " + operations.size() + " operation(s)");
+        return results;
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         if (uri == null) {
@@ -387,12 +1122,31 @@ public class AllianceSettingsProvicer extends ContentProvider {
             checkWritePermissions(tableName);
 
             int callingUserId = UserHandle.getCallingUserId();
-            AllianceDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, callingUserId));
+            final int tableUserId = getUserIdForTable(tableName, callingUserId);
+            if (mUseBinaryStorage) {
+                SettingsState state = getOrEstablishSettingsState(tableUserId, tableName);
+                String[] names = state.removeAll(
+                        getSelectedNames(state, uri, selection, selectionArgs));
+                if (names.length > 0) {
+                    notifyChange(uri, tableName, callingUserId, names);
+                }
+                return names.length;
+            }
+            SettingsState state = isInBatch() ? null
+                    : getOrEstablishSettingsState(tableUserId, tableName);
+            if (state != null) {
+                state.flush();
+            }
+            AllianceDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
             SQLiteDatabase db = dbHelper.getWritableDatabase();
             numRowsAffected = db.delete(tableName, selection, selectionArgs);
 
             if (numRowsAffected > 0) {
-                notifyChange(uri, tableName, callingUserId);
+                if (state != null) {
+                    state.reload();
+                }
+                // The selection is arbitrary, so the deleted keys are not known.
+                notifyChange(uri, tableName, callingUserId, null);
                 if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) deleted");
             }
         }
@@ -410,25 +1164,106 @@ public class AllianceSettingsProvicer extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        final String name = values.getAsString(Settings.NameValueTable.NAME);
-        if (AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM.equals(tableName)) {
-            final String value = values.getAsString(Settings.NameValueTable.VALUE);
-            validateSystemSettingNameValue(name, value);
-        }
-
         int callingUserId = UserHandle.getCallingUserId();
-        AllianceDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, callingUserId));
+        final int tableUserId = getUserIdForTable(tableName, callingUserId);
+        if (mUseBinaryStorage || (!isInBatch() && isValueUpdate(values)
+                && isInMemorySelection(uri, selection, selectionArgs))) {
+            // Also taken with a database, so a name only holding its default can be updated.
+            return updateInMemory(uri, tableName, callingUserId, tableUserId, values, selection,
+                    selectionArgs);
+        }
+        SettingsState state = isInBatch() ? null
+                : getOrEstablishSettingsState(tableUserId, tableName);
+        if (state != null) {
+            state.flush();
+        }
+        AllianceDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final String value = values.getAsString(Settings.NameValueTable.VALUE);
+        if (values.containsKey(Settings.NameValueTable.NAME)) {
+            // Every selected row is renamed, so only the new name ends up stored.
+            validateSettingNameValue(tableName, values.getAsString(Settings.NameValueTable.NAME),
+                    value);
+        } else if (values.containsKey(Settings.NameValueTable.VALUE)) {
+            for (String name : queryNames(db, tableName, selection, selectionArgs)) {
+                validateSettingNameValue(tableName, name, value);
+            }
+        }
         int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, callingUserId);
+            if (state != null) {
+                state.reload();
+            }
+            // The selection is arbitrary, so the updated keys are not known.
+            notifyChange(uri, tableName, callingUserId, null);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) updated");
         }
         return numRowsAffected;
     }
 
+    /**
+     * @return The names of the rows the selection matches.
+     */
+    private static ArrayList<String> queryNames(SQLiteDatabase db, String tableName,
+            String selection, String[] selectionArgs) {
+        ArrayList<String> names = new ArrayList<>();
+        Cursor cursor = db.query(tableName, new String[] { Settings.NameValueTable.NAME },
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    /**
+     * @return Whether the update only sets values, which SQL would otherwise also rename by.
+     */
+    private static boolean isValueUpdate(ContentValues values) {
+        return values.size() == 1 && values.containsKey(Settings.NameValueTable.VALUE);
+    }
+
+    /**
+     * Sets the value of the existing rows an update selects, for storage that can not run SQL.
+     * Rows are never renamed, so a name among the values is ignored. Each selected row is
+     * validated with the new value before any is written.
+     */
+    private int updateInMemory(Uri uri, String tableName, int callingUserId, int tableUserId,
+            ContentValues values, String selection, String[] selectionArgs) {
+        for (String key : values.keySet()) {
+            if (!Settings.NameValueTable.VALUE.equals(key)
+                    && !Settings.NameValueTable.NAME.equals(key)) {
+                throw new IllegalArgumentException("Invalid column: " + key);
+            }
+        }
+        final String value = values.getAsString(Settings.NameValueTable.VALUE);
+        SettingsState state = getOrEstablishSettingsState(tableUserId, tableName);
+        ArrayList<String> updated = new ArrayList<>();
+        for (String name : getSelectedNames(state, uri, selection, selectionArgs)) {
+            if (state.containsKey(name)) {
+                updated.add(name);
+            }
+        }
+        for (String name : updated) {
+            validateSettingNameValue(tableName, name, value);
+        }
+        final int count = updated.size();
+        if (count > 0) {
+            String[] names = updated.toArray(new String[count]);
+            String[] newValues = new String[count];
+            Arrays.fill(newValues, value);
+            state.putAll(names, newValues);
+            notifyChange(uri, tableName, callingUserId, names);
+            if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + count + " row(s) updated");
+        }
+        return count;
+    }
+
     private AllianceDatabaseHelper getOrEstablishDatabase(int callingUser) {
         if (callingUser >= android.os.Process.SYSTEM_UID) {
             if (USER_CHECK_THROWS) {
@@ -440,15 +1275,13 @@ public class AllianceSettingsProvicer extends ContentProvider {
 
         long oldId = Binder.clearCallingIdentity();
         try {
+            UserSettings user = getOrCreateUserSettings(callingUser);
             AllianceDatabaseHelper dbHelper;
-            synchronized (this) {
-                dbHelper = mDbHelpers.get(callingUser);
+            synchronized (user) {
+                dbHelper = user.mDbHelper;
             }
             if (null == dbHelper) {
-                establishDbTracking(callingUser);
-                synchronized (this) {
-                    dbHelper = mDbHelpers.get(callingUser);
-                }
+                dbHelper = establishDbTracking(callingUser);
             }
             return dbHelper;
         } finally {
@@ -456,11 +1289,12 @@ public class AllianceSettingsProvicer extends ContentProvider {
         }
     }
 
-    private void establishDbTracking(int userId) {
+    private AllianceDatabaseHelper establishDbTracking(int userId) {
+        UserSettings user = getOrCreateUserSettings(userId);
         AllianceDatabaseHelper dbHelper;
 
-        synchronized (this) {
-            dbHelper = mDbHelpers.get(userId);
+        synchronized (user) {
+            dbHelper = user.mDbHelper;
             if (LOCAL_LOGV) {
                 Log.i(TAG, "Checking nameless settings db helper for user " + userId);
             }
@@ -468,11 +1302,179 @@ public class AllianceSettingsProvicer extends ContentProvider {
                 if (LOCAL_LOGV) {
                     Log.i(TAG, "Installing new nameless settings db helper for user " + userId);
                 }
-                dbHelper = new AllianceDatabaseHelper(getContext(), userId);
-                mDbHelpers.append(userId, dbHelper);
+                dbHelper = user.mDbHelper = new AllianceDatabaseHelper(getContext(), userId);
             }
         }
         dbHelper.getWritableDatabase();
+        return dbHelper;
+    }
+
+    private UserSettings getOrCreateUserSettings(int userId) {
+        synchronized (mUsers) {
+            UserSettings user = mUsers.get(userId);
+            if (user == null) {
+                user = new UserSettings();
+                mUsers.put(userId, user);
+            }
+            return user;
+        }
+    }
+
+    private ArrayList<UserSettings> getAllUserSettings() {
+        synchronized (mUsers) {
+            ArrayList<UserSettings> users = new ArrayList<>(mUsers.size());
+            for (int i = 0; i < mUsers.size(); i++) {
+                users.add(mUsers.valueAt(i));
+            }
+            return users;
+        }
+    }
+
+    private SettingsSnapshot getOrEstablishSnapshot(int userId, String tableName) {
+        final int index = GenerationRegistry.getIndexForTable(tableName);
+        UserSettings user = getOrCreateUserSettings(userId);
+        SettingsSnapshot snapshot;
+        synchronized (user) {
+            snapshot = user.mSnapshots[index];
+            if (snapshot != null) {
+                return snapshot;
+            }
+            snapshot = user.mSnapshots[index] = new SettingsSnapshot(userId, tableName);
+        }
+        publishSnapshot(snapshot, userId, tableName);
+        return snapshot;
+    }
+
+    private SettingsSnapshot getSnapshot(int userId, String tableName) {
+        final int index = GenerationRegistry.getIndexForTable(tableName);
+        UserSettings user = getOrCreateUserSettings(userId);
+        synchronized (user) {
+            return user.mSnapshots[index];
+        }
+    }
+
+    private void publishSnapshot(SettingsSnapshot snapshot, int userId, String tableName) {
+        // Looked up first, so that the user is never locked while the snapshot is.
+        SettingsState state = getOrEstablishSettingsState(userId, tableName);
+        synchronized (snapshot) {
+            // Generation first: memory is written before the generation moves, so the rows read
+            // next are at least as new as it.
+            long generation = mGenerationRegistry.getGeneration(userId, tableName);
+            snapshot.update(generation, state.getAll());
+        }
+    }
+
+    private boolean anyDatabaseNeedsCheckpoint() {
+        return !getDatabasesNeedingCheckpoint().isEmpty();
+    }
+
+    private ArrayList<AllianceDatabaseHelper> getDatabasesNeedingCheckpoint() {
+        ArrayList<AllianceDatabaseHelper> dbHelpers = new ArrayList<>();
+        for (UserSettings user : getAllUserSettings()) {
+            synchronized (user) {
+                if (user.mDbHelper != null && user.mDbHelper.needsCheckpoint()) {
+                    dbHelpers.add(user.mDbHelper);
+                }
+            }
+        }
+        return dbHelpers;
+    }
+
+    private void checkpointDatabases() {
+        for (AllianceDatabaseHelper dbHelper : getDatabasesNeedingCheckpoint()) {
+            try {
+                dbHelper.checkpoint();
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Failed to checkpoint alliance settings database", e);
+            }
+        }
+    }
+
+    private SettingsState getOrEstablishSettingsState(int userId, String tableName) {
+        final int index = GenerationRegistry.getIndexForTable(tableName);
+        UserSettings user = getOrCreateUserSettings(userId);
+        synchronized (user) {
+            SettingsState[] states = user.mStates;
+            if (states[index] == null) {
+                final long oldId = Binder.clearCallingIdentity();
+                try {
+                    states[index] = new SettingsState(createStorage(userId, tableName), tableName,
+                            mSettingsDefaults.getForTable(tableName), mWriteHandler);
+                } finally {
+                    Binder.restoreCallingIdentity(oldId);
+                }
+                if (LOCAL_LOGV) Log.d(TAG, "Loaded " + tableName + " for user " + userId);
+            }
+            return states[index];
+        }
+    }
+
+    private SettingsStorage createStorage(int userId, String tableName) {
+        if (!mUseBinaryStorage) {
+            return new SqliteSettingsStorage(getOrEstablishDatabase(userId), tableName);
+        }
+        BinaryLogSettingsStorage storage = new BinaryLogSettingsStorage(
+                Environment.getUserSystemDirectory(userId), tableName);
+        if (!storage.exists()) {
+            migrateToBinaryStorage(storage, userId, tableName);
+        }
+        return storage;
+    }
+
+    /**
+     * Moves a table out of alliancesettings.db into newly created binary storage. The database
+     * is left in place, untouched from then on.
+     */
+    private void migrateToBinaryStorage(BinaryLogSettingsStorage storage, int userId,
+            String tableName) {
+        ArrayMap<String, String> rows = new ArrayMap<>();
+        if (AllianceDatabaseHelper.getDatabaseFile(getContext(), userId).exists()) {
+            AllianceDatabaseHelper dbHelper = new AllianceDatabaseHelper(getContext(), userId);
+            try {
+                new SqliteSettingsStorage(dbHelper, tableName).load(rows);
+            } finally {
+                dbHelper.close();
+            }
+        }
+        storage.replaceAll(rows);
+        if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rows.size() + " row(s) of " + tableName
+                + " for user " + userId + " to binary storage");
+    }
+
+    /**
+     * @return Whether writes go straight to the database rather than to memory, which is the
+     * case within a batch so that they commit or roll back with it.
+     */
+    private boolean writesThroughDatabase() {
+        return !mUseBinaryStorage && isInBatch();
+    }
+
+    private void flushAllSettingsStates() {
+        ArrayList<SettingsState> states = new ArrayList<>();
+        for (UserSettings user : getAllUserSettings()) {
+            synchronized (user) {
+                for (SettingsState state : user.mStates) {
+                    if (state != null) {
+                        states.add(state);
+                    }
+                }
+            }
+        }
+        for (SettingsState state : states) {
+            try {
+                state.flush();
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Failed to persist " + state.getTableName() + " settings", e);
+            }
+        }
+    }
+
+    /**
+     * @return Whether an applyBatch() is running on the current thread, in which case writes go
+     * straight to the database so that they commit or roll back with the batch.
+     */
+    private boolean isInBatch() {
+        return mPendingChanges.get() != null;
     }
 
     private void checkWritePermissions(String tableName) {
@@ -527,42 +1529,157 @@ public class AllianceSettingsProvicer extends ContentProvider {
         return AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL.equals(tableName) ? UserHandle.USER_OWNER : userId;
     }
 
-    private void notifyChange(Uri uri, String tableName, int userId) {
-        String property = null;
-        final boolean isGlobal = tableName.equals(AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL);
-        if (tableName.equals(AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM)) {
-            property = AllianceSettings.System.SYS_PROP_ALLIANCE_SETTING_VERSION;
-        } else if (tableName.equals(AllianceDatabaseHelper.AllianceTableNames.TABLE_SECURE)) {
-            property = AllianceSettings.Secure.SYS_PROP_ALLIANCE_SETTING_VERSION;
-        } else if (isGlobal) {
-            property = AllianceSettings.Global.SYS_PROP_ALLIANCE_SETTING_VERSION;
+    private void notifyChange(Uri uri, String tableName, int userId, String[] changedNames) {
+        PendingChanges pending = mPendingChanges.get();
+        if (pending != null) {
+            // Held back until the batch running on this thread commits.
+            pending.add(uri, tableName, userId, changedNames);
+            return;
         }
+        incrementGeneration(tableName, userId, changedNames);
+        dispatchChange(uri, tableName, userId);
+    }
 
-        if (property != null) {
-            long version = SystemProperties.getLong(property, 0) + 1;
-            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
-            SystemProperties.set(property, Long.toString(version));
+    private void incrementGeneration(final String tableName, int userId,
+            String[] changedNames) {
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        long version = mGenerationRegistry.incrementGeneration(tableUserId, tableName,
+                changedNames);
+        if (LOCAL_LOGV) Log.v(TAG, "generation: " + tableName + "=" + version);
+
+        // Republished on the publisher thread, once for any number of writes made meanwhile.
+        // Until then clients find the snapshot behind their generation and ask us instead.
+        final SettingsSnapshot snapshot = getSnapshot(tableUserId, tableName);
+        if (snapshot != null && snapshot.markStale()) {
+            mPublishHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (snapshot.isClosed()) {
+                        // The user is gone; do not bring its settings back.
+                        return;
+                    }
+                    try {
+                        publishSnapshot(snapshot, tableUserId, tableName);
+                    } catch (IllegalStateException | SQLiteException e) {
+                        Log.w(TAG, "Unable to publish snapshot of " + tableName, e);
+                    }
+                }
+            });
         }
+    }
 
+    private void dispatchChange(Uri uri, String tableName, int userId) {
+        final boolean isGlobal = tableName.equals(AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL);
         final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
-        final long oldId = Binder.clearCallingIdentity();
-        try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
-        } finally {
-            Binder.restoreCallingIdentity(oldId);
+        mChangeNotifier.notifyChange(uri, notifyTarget);
+    }
+
+    /**
+     * Everything the provider holds for one user. Each user has its own locks, so that opening,
+     * loading or migrating the settings of one user never holds up another.
+     */
+    private static final class UserSettings {
+        // Guarded by 'this'.
+        AllianceDatabaseHelper mDbHelper;
+        // In-memory tables, indexed by GenerationRegistry.getIndexForTable(). Guarded by 'this'.
+        final SettingsState[] mStates = new SettingsState[3];
+        // Published snapshots, indexed like mStates and only created once a client asks for
+        // one. Guarded by 'this'.
+        final SettingsSnapshot[] mSnapshots = new SettingsSnapshot[3];
+        // Held for the whole of a migration of the user's legacy settings.
+        final Object mMigrationLock = new Object();
+    }
+
+    /**
+     * Generation bumps and change notifications collected while an applyBatch() is running on
+     * the current thread.
+     */
+    private final class PendingChanges {
+        private final ArrayList<PendingTable> mTables = new ArrayList<>();
+        // Affected uris, mapped to the table and user to notify them for.
+        private final ArrayMap<Uri, PendingTable> mUris = new ArrayMap<>();
+
+        void add(Uri uri, String tableName, int userId, String[] changedNames) {
+            PendingTable table = null;
+            for (PendingTable candidate : mTables) {
+                if (candidate.mTableName.equals(tableName) && candidate.mUserId == userId) {
+                    table = candidate;
+                    break;
+                }
+            }
+            if (table == null) {
+                table = new PendingTable(tableName, userId);
+                mTables.add(table);
+            }
+            if (changedNames == null) {
+                table.mNames = null;
+            } else if (table.mNames != null) {
+                table.mNames.addAll(Arrays.asList(changedNames));
+            }
+            mUris.put(uri, table);
+        }
+
+        void dispatch() {
+            if (!mUseBinaryStorage) {
+                for (PendingTable table : mTables) {
+                    // The batch wrote to the database behind the in-memory table.
+                    getOrEstablishSettingsState(getUserIdForTable(table.mTableName,
+                            table.mUserId), table.mTableName).reload();
+                }
+            }
+            for (PendingTable table : mTables) {
+                incrementGeneration(table.mTableName, table.mUserId, table.mNames == null ? null
+                        : table.mNames.toArray(new String[table.mNames.size()]));
+            }
+            for (int i = 0; i < mUris.size(); i++) {
+                PendingTable table = mUris.valueAt(i);
+                dispatchChange(mUris.keyAt(i), table.mTableName, table.mUserId);
+            }
         }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
     }
 
-    private void validateSystemSettingNameValue(String name, String value) {
-        AllianceSettings.System.Validator validator = AllianceSettings.System.VALIDATORS.get(name);
-        if (validator == null) {
-            throw new IllegalArgumentException("Invalid setting: " + name);
+    private static final class PendingTable {
+        final String mTableName;
+        final int mUserId;
+        // Null once a write with unknown keys was made.
+        ArraySet<String> mNames = new ArraySet<>();
+
+        PendingTable(String tableName, int userId) {
+            mTableName = tableName;
+            mUserId = userId;
+        }
+    }
+
+    /**
+     * Checks a write against the schema of the table. Only system settings must be declared;
+     * the keys of the other tables are checked if they are.
+     */
+    private void validateSettingNameValue(String tableName, String name, String value) {
+        final boolean isSystem =
+                AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM.equals(tableName);
+        AllianceSettings.Schema schema = getSchemaForTable(tableName);
+        final int keyId = schema.getKeyId(name);
+        if (keyId == AllianceSettings.Schema.UNKNOWN_KEY) {
+            if (isSystem) {
+                throw new IllegalArgumentException("Invalid setting: " + name);
+            }
+            return;
         }
 
-        if (!validator.validate(value)) {
+        if (!schema.validate(keyId, value)) {
             throw new IllegalArgumentException("Invalid value: " + value
                     + " for setting: " + name);
         }
     }
+
+    static AllianceSettings.Schema getSchemaForTable(String tableName) {
+        if (AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM.equals(tableName)) {
+            return AllianceSettings.System.SCHEMA;
+        } else if (AllianceDatabaseHelper.AllianceTableNames.TABLE_SECURE.equals(tableName)) {
+            return AllianceSettings.Secure.SCHEMA;
+        } else if (AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL.equals(tableName)) {
+            return AllianceSettings.Global.SCHEMA;
+        }
+        throw new IllegalArgumentException("Invalid table: " + tableName);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Stores a settings table in two flat files instead of SQLite: a snapshot of every row, replaced
+ * atomically, and a log of the changes made since, each appended and synced as one
+ * checksummed record. Loading is a sequential read of both. Once the log grows past
+ * {@link #COMPACT_LOG_BYTES} the rows are written to a new snapshot and the log starts over.
+ *
+ * Strings are stored as their UTF-8 length, or -1 for null, followed by their bytes. The
+ * snapshot holds a magic, a format version, the row count and the rows; each log record holds
+ * its payload length, the payload and its CRC32, the payload being the written rows and the
+ * removed names, each preceded by their count. A record cut short by a crash fails its checksum
+ * and is dropped together with anything after it, and one cut short by a failed write is cut
+ * off right away. A snapshot that can not be read is skipped, so the table loads with the rows
+ * of its log only rather than failing.
+ */
+public class BinaryLogSettingsStorage implements SettingsStorage {
+
+    private static final String TAG = "AllianceBinaryStorage";
+    private static final String FILE_NAME_PREFIX = "alliancesettings_";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int SNAPSHOT_MAGIC = 0x414c5342;
+    private static final int FORMAT_VERSION = 1;
+
+    static final int COMPACT_LOG_BYTES = 32 * 1024;
+
+    private final String mTableName;
+    private final AtomicFile mSnapshotFile;
+    private final File mLogFile;
+
+    // Every row as persisted, kept to write the next snapshot from.
+    private final ArrayMap<String, String> mRows = new ArrayMap<>();
+    private long mLogLength;
+    // Set when a failed append could not be cut off, so the log is replaced by a snapshot
+    // before anything is appended after it.
+    private boolean mLogDamaged;
+
+    public BinaryLogSettingsStorage(File directory, String tableName) {
+        mTableName = tableName;
+        mSnapshotFile = new AtomicFile(new File(directory,
+                FILE_NAME_PREFIX + tableName + SNAPSHOT_SUFFIX));
+        mLogFile = new File(directory, FILE_NAME_PREFIX + tableName + LOG_SUFFIX);
+    }
+
+    /**
+     * @return Whether the table was ever stored here, as opposed to still waiting to be
+     * migrated.
+     */
+    public boolean exists() {
+        return mSnapshotFile.getBaseFile().exists() || mLogFile.exists();
+    }
+
+    /**
+     * Replaces whatever is stored with the given rows, for migrating a table in.
+     */
+    public void replaceAll(ArrayMap<String, String> rows) {
+        mRows.clear();
+        mRows.putAll(rows);
+        compact();
+    }
+
+    @Override
+    public void load(ArrayMap<String, String> rows) {
+        mRows.clear();
+        mLogLength = 0;
+        mLogDamaged = false;
+        try {
+            readSnapshot(mSnapshotFile.readFully());
+        } catch (FileNotFoundException e) {
+            // Never compacted.
+        } catch (IOException e) {
+            // The log still holds the latest changes, which beat losing the whole table.
+            Log.e(TAG, "Ignoring unreadable snapshot of " + mTableName + " settings", e);
+            mRows.clear();
+        }
+        if (mLogFile.exists()) {
+            try {
+                replayLog();
+            } catch (IOException e) {
+                // Keep what was replayed and start over with the next write.
+                Log.e(TAG, "Unable to replay log of " + mTableName + " settings", e);
+                mLogDamaged = true;
+            }
+        }
+        rows.putAll(mRows);
+        if (LOCAL_LOGV) Log.d(TAG, mTableName + ": loaded " + mRows.size() + " row(s), "
+                + mLogLength + " log byte(s)");
+    }
+
+    @Override
+    public void write(ArrayMap<String, String> writes, ArraySet<String> removals) {
+        if (mLogDamaged) {
+            // Nothing appended now would be replayed, so the rows go to a snapshot instead.
+            ArrayMap<String, String> rows = new ArrayMap<>(mRows);
+            rows.putAll(writes);
+            rows.removeAll(removals);
+            replaceAll(rows);
+            mLogDamaged = false;
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(writes.size());
+            for (int i = 0; i < writes.size(); i++) {
+                writeString(out, writes.keyAt(i));
+                writeString(out, writes.valueAt(i));
+            }
+            out.writeInt(removals.size());
+            for (int i = 0; i < removals.size(); i++) {
+                writeString(out, removals.valueAt(i));
+            }
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            FileOutputStream log = new FileOutputStream(mLogFile, true);
+            try {
+                DataOutputStream record = new DataOutputStream(log);
+                record.writeInt(payload.length);
+                record.write(payload);
+                record.writeLong(crc.getValue());
+                record.flush();
+                log.getFD().sync();
+            } catch (IOException e) {
+                // Whatever part of the record made it out would hide the records after it.
+                truncateLog();
+                throw e;
+            } finally {
+                log.close();
+            }
+            mLogLength += 4 + payload.length + 8;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to persist " + mTableName + " settings", e);
+        }
+
+        mRows.putAll(writes);
+        mRows.removeAll(removals);
+        if (mLogLength > COMPACT_LOG_BYTES) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        FileOutputStream out = null;
+        try {
+            out = mSnapshotFile.startWrite();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.writeInt(mRows.size());
+            for (int i = 0; i < mRows.size(); i++) {
+                writeString(data, mRows.keyAt(i));
+                writeString(data, mRows.valueAt(i));
+            }
+            data.flush();
+            mSnapshotFile.finishWrite(out);
+            out = null;
+
+            // Replaying the old log over the new snapshot would be harmless, so a crash before
+            // this point loses nothing.
+            FileOutputStream log = new FileOutputStream(mLogFile, false);
+            try {
+                log.getFD().sync();
+            } finally {
+                log.close();
+            }
+            mLogLength = 0;
+            if (LOCAL_LOGV) Log.d(TAG, mTableName + ": compacted " + mRows.size() + " row(s)");
+        } catch (IOException e) {
+            if (out != null) {
+                mSnapshotFile.failWrite(out);
+            }
+            throw new IllegalStateException("Unable to compact " + mTableName + " settings", e);
+        }
+    }
+
+    private void truncateLog() {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mLogFile, "rw");
+            try {
+                raf.setLength(mLogLength);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to truncate log of " + mTableName + " settings", e);
+            mLogDamaged = true;
+        }
+    }
+
+    private void readSnapshot(byte[] contents) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Invalid snapshot of " + mTableName);
+        }
+        final int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown snapshot version " + version + " of " + mTableName);
+        }
+        final int count = in.readInt();
+        // Every row takes at least its two lengths.
+        if (count < 0 || count > contents.length / 8) {
+            throw new IOException("Invalid row count " + count + " of " + mTableName);
+        }
+        mRows.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            mRows.put(readString(in), readString(in));
+        }
+    }
+
+    private void replayLog() throws IOException {
+        byte[] contents = readFile(mLogFile);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+        long valid = 0;
+        try {
+            while (valid < contents.length) {
+                final int length = in.readInt();
+                if (length < 0 || length > contents.length - valid - 12) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (in.readLong() != crc.getValue()) {
+                    break;
+                }
+                applyRecord(payload);
+                valid += 4 + length + 8;
+            }
+        } catch (EOFException e) {
+            // Cut short by a crash.
+        }
+
+        if (valid < contents.length) {
+            Log.w(TAG, mTableName + ": dropping " + (contents.length - valid)
+                    + " byte(s) of incomplete log");
+            RandomAccessFile raf = new RandomAccessFile(mLogFile, "rw");
+            try {
+                raf.setLength(valid);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+        mLogLength = valid;
+    }
+
+    private void applyRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final int writeCount = in.readInt();
+        for (int i = 0; i < writeCount; i++) {
+            mRows.put(readString(in), readString(in));
+        }
+        final int removalCount = in.readInt();
+        for (int i = 0; i < removalCount; i++) {
+            mRows.remove(readString(in));
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] contents = new byte[(int) file.length()];
+            int read = 0;
+            while (read < contents.length) {
+                int count = in.read(contents, read, contents.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            if (read < contents.length) {
+                byte[] truncated = new byte[read];
+                System.arraycopy(contents, 0, truncated, 0, read);
+                return truncated;
+            }
+            return contents;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.available()) {
+            throw new EOFException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.util.ArraySet;
+
+/**
+ * Bounded record of which keys of a table changed at which generation, so that clients can
+ * drop just those keys from their caches instead of the whole table. Not thread-safe; the
+ * owning {@link GenerationRegistry} serializes access.
+ */
+class ChangeJournal {
+
+    private final long[] mGenerations;
+    private final String[] mNames;
+
+    // Index the next change is written to, and the number of changes held.
+    private int mHead;
+    private int mSize;
+
+    // Every change made after this generation is still held.
+    private long mOldestGeneration;
+
+    ChangeJournal(int capacity, long generation) {
+        mGenerations = new long[capacity];
+        mNames = new String[capacity];
+        mOldestGeneration = generation;
+    }
+
+    /**
+     * Records that a key changed at the given generation, evicting the oldest change if the
+     * journal is full.
+     */
+    void record(long generation, String name) {
+        if (mSize == mNames.length) {
+            // The evicted change is no longer held, so neither is its generation.
+            mOldestGeneration = Math.max(mOldestGeneration, mGenerations[mHead]);
+        } else {
+            mSize++;
+        }
+        mGenerations[mHead] = generation;
+        mNames[mHead] = name;
+        mHead = (mHead + 1) % mNames.length;
+    }
+
+    /**
+     * Forgets every change up to and including the given generation, for writes whose keys are
+     * not known.
+     */
+    void reset(long generation) {
+        for (int i = 0; i < mNames.length; i++) {
+            mNames[i] = null;
+        }
+        mHead = 0;
+        mSize = 0;
+        mOldestGeneration = generation;
+    }
+
+    /**
+     * @param generation The generation the caller last saw.
+     * @param currentGeneration The generation the table is at now.
+     * @return The distinct keys changed after the given generation, or null if the journal no
+     * longer covers it and the caller must drop everything.
+     */
+    String[] getChangesSince(long generation, long currentGeneration) {
+        if (generation < mOldestGeneration || generation > currentGeneration) {
+            return null;
+        }
+        ArraySet<String> names = new ArraySet<String>();
+        for (int i = 0; i < mSize; i++) {
+            final int index = (mHead - 1 - i + mNames.length) % mNames.length;
+            if (mGenerations[index] <= generation) {
+                break;
+            }
+            names.add(mNames[index]);
+        }
+        return names.toArray(new String[names.size()]);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Handler;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Delivers content change notifications off the writing thread. Uris changed within
+ * {@link #getDelayMs()} of the first pending one are collected per target user, each distinct
+ * uri is notified once, and the whole lot is dispatched from the notifier's handler. Nothing is
+ * ever synced to the network.
+ */
+public class ChangeNotifier {
+
+    private static final String TAG = "AllianceChangeNotifier";
+
+    private static final boolean LOCAL_LOGV = false;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final long mDelayMs;
+
+    // Pending uris keyed by the user to notify them for. Guarded by mLock.
+    private SparseArray<ArraySet<Uri>> mPendingUris = new SparseArray<>();
+    // Guarded by mLock.
+    private boolean mDispatchScheduled;
+
+    private final Object mLock = new Object();
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mDispatchScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    /**
+     * @param delayMs How long changes are collected before they are delivered, or 0 to deliver
+     * each one synchronously on the writing thread.
+     */
+    public ChangeNotifier(ContentResolver resolver, Handler handler, long delayMs) {
+        mResolver = resolver;
+        mHandler = handler;
+        mDelayMs = delayMs;
+    }
+
+    public long getDelayMs() {
+        return mDelayMs;
+    }
+
+    public void notifyChange(Uri uri, int userHandle) {
+        synchronized (mLock) {
+            ArraySet<Uri> uris = mPendingUris.get(userHandle);
+            if (uris == null) {
+                uris = new ArraySet<>();
+                mPendingUris.put(userHandle, uris);
+            }
+            uris.add(uri);
+            if (mDelayMs > 0) {
+                // Only the first change schedules a dispatch, so none waits longer than the delay
+                // however often the same keys are written.
+                if (!mDispatchScheduled) {
+                    mHandler.postDelayed(mDispatchRunnable, mDelayMs);
+                    mDispatchScheduled = true;
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Delivers every pending notification on the calling thread, for callers that need their
+     * observers told before they return.
+     */
+    public void flush() {
+        SparseArray<ArraySet<Uri>> pending;
+        synchronized (mLock) {
+            if (mPendingUris.size() == 0) {
+                return;
+            }
+            mHandler.removeCallbacks(mDispatchRunnable);
+            mDispatchScheduled = false;
+            pending = mPendingUris;
+            mPendingUris = new SparseArray<>();
+        }
+
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                final int userHandle = pending.keyAt(i);
+                ArraySet<Uri> uris = pending.valueAt(i);
+                for (int j = 0; j < uris.size(); j++) {
+                    mResolver.notifyChange(uris.valueAt(j), null, false, userHandle);
+                    if (LOCAL_LOGV) Log.v(TAG, "notifying for " + userHandle + ": " + uris.valueAt(j));
+                }
+            }
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Publishes a generation counter per user and table in a small memory-mapped file. Clients map
+ * the same file read-only through a descriptor handed out by {@link AllianceSettingsProvider},
+ * so checking whether a cached table is still current is a single memory load on their side and
+ * bumping it is a single store on ours.
+ *
+ * The file holds one big-endian long per table, indexed by {@link #getIndexForTable}. It lives
+ * next to the user's settings database and is kept across reboots so that generations only ever
+ * move forward. Alongside each counter the registry keeps a {@link ChangeJournal} of the keys
+ * written at each generation, which lets clients invalidate only what changed.
+ */
+public class GenerationRegistry {
+
+    private static final String TAG = "AllianceGenerationRegistry";
+    private static final String FILE_NAME = "alliancesettings_generation";
+
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int SLOT_SIZE = 8;
+    private static final int SLOT_COUNT = 3;
+
+    private static final int JOURNAL_CAPACITY = 128;
+
+    // Guarded by 'this'.
+    private final SparseArray<UserGenerations> mUserGenerations = new SparseArray<>();
+
+    private static final class UserGenerations {
+        final MappedByteBuffer mBuffer;
+        final ParcelFileDescriptor mReadOnlyDescriptor;
+        final ChangeJournal[] mJournals = new ChangeJournal[SLOT_COUNT];
+
+        UserGenerations(MappedByteBuffer buffer, ParcelFileDescriptor readOnlyDescriptor) {
+            mBuffer = buffer;
+            mReadOnlyDescriptor = readOnlyDescriptor;
+        }
+    }
+
+    static int getIndexForTable(String tableName) {
+        if (AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM.equals(tableName)) {
+            return 0;
+        } else if (AllianceDatabaseHelper.AllianceTableNames.TABLE_SECURE.equals(tableName)) {
+            return 1;
+        } else if (AllianceDatabaseHelper.AllianceTableNames.TABLE_GLOBAL.equals(tableName)) {
+            return 2;
+        }
+        throw new IllegalArgumentException("Invalid table: " + tableName);
+    }
+
+    /**
+     * @param userId The user owning the table, as returned by getUserIdForTable.
+     * @param tableName The table to look up.
+     * @return The current generation of the table.
+     */
+    public long getGeneration(int userId, String tableName) {
+        final int offset = getIndexForTable(tableName) * SLOT_SIZE;
+        synchronized (this) {
+            return getOrMapLocked(userId).mBuffer.getLong(offset);
+        }
+    }
+
+    /**
+     * Moves the table on to a new generation and records which keys changed with it.
+     * @param userId The user owning the table, as returned by getUserIdForTable.
+     * @param tableName The table that was written.
+     * @param names The keys that were written, or null if they are not known, in which case
+     * clients drop their whole cache of the table.
+     * @return The new generation of the table.
+     */
+    public long incrementGeneration(int userId, String tableName, String[] names) {
+        final int index = getIndexForTable(tableName);
+        final int offset = index * SLOT_SIZE;
+        synchronized (this) {
+            UserGenerations generations = getOrMapLocked(userId);
+            long generation = generations.mBuffer.getLong(offset) + 1;
+            ChangeJournal journal = getOrCreateJournalLocked(generations, index);
+            if (names == null) {
+                journal.reset(generation);
+            } else {
+                for (String name : names) {
+                    journal.record(generation, name);
+                }
+            }
+            generations.mBuffer.putLong(offset, generation);
+            if (LOCAL_LOGV) Log.v(TAG, "user " + userId + " " + tableName + " -> " + generation);
+            return generation;
+        }
+    }
+
+    /**
+     * @param userId The user owning the table, as returned by getUserIdForTable.
+     * @param tableName The table to look up.
+     * @param generation The generation the caller last saw.
+     * @param outGeneration Receives the generation the returned keys bring the caller up to.
+     * @return The keys changed since the given generation, or null if they are no longer known.
+     */
+    public String[] getChangesSince(int userId, String tableName, long generation,
+            long[] outGeneration) {
+        final int index = getIndexForTable(tableName);
+        synchronized (this) {
+            UserGenerations generations = getOrMapLocked(userId);
+            final long currentGeneration = generations.mBuffer.getLong(index * SLOT_SIZE);
+            outGeneration[0] = currentGeneration;
+            return getOrCreateJournalLocked(generations, index).getChangesSince(generation,
+                    currentGeneration);
+        }
+    }
+
+    /**
+     * @param userId The user owning the table, as returned by getUserIdForTable.
+     * @return A new read-only descriptor for the user's generation file, owned by the caller.
+     * Callers in our own process receive it without parceling and close it themselves, so the
+     * registry's own descriptor is never handed out.
+     * @throws IOException If the descriptor could not be duplicated.
+     */
+    public ParcelFileDescriptor getReadOnlyDescriptor(int userId) throws IOException {
+        synchronized (this) {
+            return getOrMapLocked(userId).mReadOnlyDescriptor.dup();
+        }
+    }
+
+    public void onUserRemoved(int userId) {
+        synchronized (this) {
+            UserGenerations generations = mUserGenerations.get(userId);
+            if (generations != null) {
+                mUserGenerations.delete(userId);
+                try {
+                    generations.mReadOnlyDescriptor.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close generation file for user " + userId, e);
+                }
+            }
+        }
+    }
+
+    private ChangeJournal getOrCreateJournalLocked(UserGenerations generations, int index) {
+        ChangeJournal journal = generations.mJournals[index];
+        if (journal == null) {
+            // Nothing written before now was recorded.
+            journal = generations.mJournals[index] = new ChangeJournal(JOURNAL_CAPACITY,
+                    generations.mBuffer.getLong(index * SLOT_SIZE));
+        }
+        return journal;
+    }
+
+    private UserGenerations getOrMapLocked(int userId) {
+        UserGenerations generations = mUserGenerations.get(userId);
+        if (generations == null) {
+            File file = new File(Environment.getUserSystemDirectory(userId), FILE_NAME);
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                        0, SLOT_SIZE * SLOT_COUNT);
+                ParcelFileDescriptor readOnly = ParcelFileDescriptor.open(file,
+                        ParcelFileDescriptor.MODE_READ_ONLY);
+                generations = new UserGenerations(buffer, readOnly);
+                mUserGenerations.put(userId, generations);
+                if (LOCAL_LOGV) Log.d(TAG, "Mapped generation file for user " + userId);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to map generation file " + file, e);
+            } finally {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {
+                        // The mapping stays valid once the file is closed.
+                    }
+                }
+            }
+        }
+        return generations;
+    }
+}
@@ -23,11 +23,14 @@ import android.content.Context;
 import android.content.IContentProvider;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.util.Log;
 
 import alliace-rom.providers.AllianceSettings;
 
+import java.util.Arrays;
+
 public class PreBootReceiver extends BroadcastReceiver {
 
 	private static final String TAG = "AllianceSettingsReceiver";
@@ -35,18 +38,53 @@ public class PreBootReceiver extends BroadcastReceiver {
 	private static final boolean LOCAL_LOGV = false;
 
 	@Override
-	public void onReceive(Context context, Intent intent) {
+	public void onReceive(final Context context, Intent intent) {
 		if (LOCAL_LOGV) Log.d(TAG, "Received pre-boot intent. Attempting to migrate Alliance settings.");
 
+		// The migration reads every legacy table, which is too slow for the main thread. The
+		// broadcast is held open until it is done, so boot still waits for it and no migrated
+		// setting is read as its default in the meantime.
+		final PendingResult result = goAsync();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					migrate(context);
+				} catch (RuntimeException e) {
+					// Left enabled, so the migration is retried on the next boot.
+					Log.e(TAG, "Failed to migrate Alliance settings", e);
+				} finally {
+					result.finish();
+				}
+			}
+		}, TAG).start();
+	}
+
+	private void migrate(Context context) {
 		ContentResolver resolver = context.getContentResolver();
 		IContentProvider provider = resolver.acquireProvider(AllianceSettings.AUTHORITY);
+		if (provider == null) {
+			Log.w(TAG, "Failed to trigger settings migration, provider unavailable");
+			return;
+		}
 		try {
-			provider.call(resolver.getPackageName(), AllianceSettings.CALL_METHOD_MIGRATE_SETTINGS, null, null);
+			Bundle result = provider.call(resolver.getPackageName(),
+					AllianceSettings.CALL_METHOD_MIGRATE_SETTINGS, null, null);
+			int[] pendingUsers = (result == null) ? null
+					: result.getIntArray(AllianceSettings.CALL_METHOD_PENDING_USERS_KEY);
+			if (pendingUsers == null || pendingUsers.length > 0) {
+				// Stay enabled until every table of every user reached its checkpoint.
+				Log.w(TAG, "Alliance settings not migrated for users "
+						+ Arrays.toString(pendingUsers) + ", retrying on next boot");
+				return;
+			}
 			context.getPackageManager().setComponentEnabledSetting(new ComponentName(context, getClass()),
 						PackageManager.COMPONENT_ENABLED_STATE_DISABLED, PackageManager.DONT_KILL_APP);
 		} catch (RemoteException ex) {
 			Log.w(TAG, "Failed to trigger settings migration due to RemoteException");
 			ex.printStackTrace();
+		} finally {
+			resolver.releaseProvider(provider);
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.os.SystemProperties;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import alliancerom.providers.AllianceSettings;
+
+/**
+ * Default values of the settings tables, read from res/values/defaults.xml the first time a
+ * table is loaded and kept in memory for the life of the process. They are shared by every user
+ * and never written to storage: a {@link SettingsState} falls back to them for the names it
+ * holds no row for, so creating the tables of a user costs the same however many defaults
+ * there are.
+ */
+public class SettingsDefaults {
+
+    private static final String TAG = "AllianceSettingsDefaults";
+    private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
+
+    private static final boolean LOCAL_LOGV = false;
+
+    private final Context mContext;
+    private final String mMcc;
+
+    // Guarded by 'this'.
+    private final ArrayMap<String, ArrayMap<String, String>> mDefaults = new ArrayMap<>();
+    // Resources for the prebundled MCC, built on first use. Guarded by 'this'.
+    private Resources mRegionResources;
+    private boolean mRegionResourcesResolved;
+
+    public SettingsDefaults(Context context) {
+        this(context, SystemProperties.get(MCC_PROP_NAME));
+    }
+
+    /**
+     * @param mcc The MCC to load region-locked defaults for, instead of the prebundled one.
+     */
+    SettingsDefaults(Context context, String mcc) {
+        mContext = context;
+        mMcc = mcc;
+    }
+
+    /**
+     * @return The defaults of the table, which must not be modified.
+     */
+    public synchronized ArrayMap<String, String> getForTable(String tableName) {
+        ArrayMap<String, String> defaults = mDefaults.get(tableName);
+        if (defaults == null) {
+            defaults = new ArrayMap<>();
+            loadDefaults(tableName, defaults);
+            mDefaults.put(tableName, defaults);
+            if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + defaults.size() + " default(s)");
+        }
+        return defaults;
+    }
+
+    private void loadDefaults(String tableName, ArrayMap<String, String> defaults) {
+        // Those declared in the schema first, so resources can override them.
+        AllianceSettings.Schema schema = AllianceSettingsProvicer.getSchemaForTable(tableName);
+        for (int i = 0; i < schema.size(); i++) {
+            final String value = schema.getDefault(i);
+            if (value != null) {
+                loadSetting(defaults, schema.getName(i), value);
+            }
+        }
+        //load defaults once we have some
+    }
+
+    private void loadRegionLockedStringSetting(ArrayMap<String, String> defaults, String name,
+            int resId) {
+        loadSetting(defaults, name, getRegionResources().getString(resId));
+    }
+
+    /**
+     * @return The resources of the package for the MCC, by default the one in
+     * {@link #MCC_PROP_NAME}, or the package's own resources if it is unset or invalid. The MCC specific ones are built once,
+     * since an AssetManager is expensive to set up.
+     */
+    synchronized Resources getRegionResources() {
+        if (!mRegionResourcesResolved) {
+            mRegionResources = createRegionResources();
+            mRegionResourcesResolved = true;
+        }
+        return mRegionResources != null ? mRegionResources : mContext.getResources();
+    }
+
+    private Resources createRegionResources() {
+        if (TextUtils.isEmpty(mMcc)) {
+            return null;
+        }
+        Configuration tempConfiguration = new Configuration();
+        try {
+            tempConfiguration.mcc = Integer.parseInt(mMcc);
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return null;
+        }
+        AssetManager assetManager = new AssetManager();
+
+        String publicSrcDir = mContext.getApplicationInfo().publicSourceDir;
+        if (!TextUtils.isEmpty(publicSrcDir)) {
+            assetManager.addAssetPath(publicSrcDir);
+        }
+        if (LOCAL_LOGV) Log.d(TAG, "Loading region-locked defaults for mcc " + mMcc);
+        return new Resources(assetManager, new DisplayMetrics(), tempConfiguration);
+    }
+
+    private void loadStringSetting(ArrayMap<String, String> defaults, String name, int resId) {
+        loadSetting(defaults, name, mContext.getResources().getString(resId));
+    }
+
+    private void loadBooleanSetting(ArrayMap<String, String> defaults, String name, int resId) {
+        loadSetting(defaults, name, mContext.getResources().getBoolean(resId) ? "1" : "0");
+    }
+
+    private void loadIntegerSetting(ArrayMap<String, String> defaults, String name, int resId) {
+        loadSetting(defaults, name, Integer.toString(mContext.getResources().getInteger(resId)));
+    }
+
+    private void loadSetting(ArrayMap<String, String> defaults, String name, String value) {
+        if (LOCAL_LOGV) Log.d(TAG, "Loading key: " + name + ", value: " + value);
+        defaults.put(name, value);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import sun.misc.Unsafe;
+
+/**
+ * Read-only copy of one settings table of one user, published in a memory-mapped file that
+ * clients map through a descriptor handed out by {@link AllianceSettingsProvider}. Clients look
+ * values up in it directly, so a read that misses their cache costs no binder transaction.
+ *
+ * The file is a fixed-size region of big-endian fields, which the client side in
+ * AllianceSettings reads with the same offsets:
+ * <pre>
+ *   0  int   magic
+ *   4  int   number of rows, or -1 if the table does not fit
+ *   8  long  sequence, odd while a write is in progress
+ *  16  long  generation of the table the rows were read at
+ *  24  int[] offset of each row, in name order
+ *  ... rows: int name length, name chars, int value length or -1 for null, value chars
+ * </pre>
+ * Readers check that the sequence is even and unchanged across their read, and retry or fall
+ * back to asking the provider otherwise.
+ *
+ * Updates are made off the write path, see {@link #markStale}, and only rewrite the rows from
+ * the first one that changed.
+ */
+public class SettingsSnapshot {
+
+    private static final String TAG = "AllianceSettingsSnapshot";
+    private static final String FILE_NAME_PREFIX = "alliancesettings_snapshot_";
+
+    private static final boolean LOCAL_LOGV = false;
+
+    static final int MAGIC = 0x414c5353;
+    static final int CAPACITY = 256 * 1024;
+
+    static final int MAGIC_OFFSET = 0;
+    static final int COUNT_OFFSET = 4;
+    static final int SEQUENCE_OFFSET = 8;
+    static final int GENERATION_OFFSET = 16;
+    static final int HEADER_SIZE = 24;
+
+    static final int COUNT_INVALID = -1;
+
+    // The mapping is shared with other processes, which no Java volatile can order accesses
+    // for, so the stores to the sequence and to the rows are kept apart by explicit fences.
+    private static final Unsafe sUnsafe = getUnsafe();
+
+    private final String mTableName;
+    private final MappedByteBuffer mBuffer;
+    private final ParcelFileDescriptor mReadOnlyDescriptor;
+
+    private final AtomicBoolean mStale = new AtomicBoolean();
+
+    // Guarded by 'this'.
+    private long mSequence;
+    private long mGeneration = -1;
+    // The published rows in name order, or null if none are. Guarded by 'this'.
+    private String[] mNames;
+    private String[] mValues;
+    private boolean mClosed;
+
+    public SettingsSnapshot(int userId, String tableName) {
+        mTableName = tableName;
+        File file = new File(Environment.getUserSystemDirectory(userId),
+                FILE_NAME_PREFIX + tableName);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+            mReadOnlyDescriptor = ParcelFileDescriptor.open(file,
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map snapshot file " + file, e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // The mapping stays valid once the file is closed.
+                }
+            }
+        }
+        // Whatever a previous boot left behind is not trusted; the generation can not match
+        // until the first update.
+        mSequence = mBuffer.getLong(SEQUENCE_OFFSET);
+        if ((mSequence & 1) != 0) {
+            mSequence++;
+        }
+        beginWrite();
+        mBuffer.putInt(MAGIC_OFFSET, MAGIC);
+        mBuffer.putInt(COUNT_OFFSET, COUNT_INVALID);
+        mBuffer.putLong(GENERATION_OFFSET, -1);
+        endWrite();
+    }
+
+    /**
+     * @return A new read-only descriptor for the snapshot file, owned by the caller.
+     */
+    public ParcelFileDescriptor getReadOnlyDescriptor() throws IOException {
+        return mReadOnlyDescriptor.dup();
+    }
+
+    /**
+     * Records that the table moved past the published rows.
+     * @return Whether the snapshot was up to date until now, in which case the caller must
+     * schedule an {@link #update}. Later calls return false until that update starts, so any
+     * number of writes in between cost one update.
+     */
+    public boolean markStale() {
+        return mStale.compareAndSet(false, true);
+    }
+
+    /**
+     * Replaces the published rows.
+     * @param generation The generation of the table the rows are at least as new as.
+     * @param rows Every row of the table.
+     */
+    public synchronized void update(long generation, ArrayMap<String, String> rows) {
+        // Cleared first, so that a write made while we copy marks us stale again.
+        mStale.set(false);
+        if (mClosed || generation <= mGeneration) {
+            // Already published at this generation or a later one.
+            return;
+        }
+        final int count = rows.size();
+        String[] names = mNames;
+        if (names == null || names.length != count || !containsAll(rows, names)) {
+            names = rows.keySet().toArray(new String[count]);
+            Arrays.sort(names);
+        }
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = rows.get(names[i]);
+        }
+
+        // With the same names the rows before the first changed value are left in place.
+        int first = 0;
+        if (names == mNames) {
+            while (first < count && TextUtils.equals(values[first], mValues[first])) {
+                first++;
+            }
+        }
+        final int start = first == 0 ? HEADER_SIZE + count * 4
+                : first < count ? mBuffer.getInt(HEADER_SIZE + first * 4) : 0;
+        int size = start;
+        for (int i = first; i < count; i++) {
+            size += 8 + names[i].length() * 2 + (values[i] == null ? 0 : values[i].length() * 2);
+        }
+
+        beginWrite();
+        if (size > CAPACITY) {
+            Log.w(TAG, mTableName + ": " + count + " row(s) do not fit the snapshot");
+            mBuffer.putInt(COUNT_OFFSET, COUNT_INVALID);
+            mNames = null;
+            mValues = null;
+        } else {
+            int offset = start;
+            for (int i = first; i < count; i++) {
+                mBuffer.putInt(HEADER_SIZE + i * 4, offset);
+                offset = putChars(offset, names[i]);
+                offset = putChars(offset, values[i]);
+            }
+            mBuffer.putInt(COUNT_OFFSET, count);
+            mNames = names;
+            mValues = values;
+        }
+        mBuffer.putLong(GENERATION_OFFSET, generation);
+        endWrite();
+        mGeneration = generation;
+        if (LOCAL_LOGV) Log.v(TAG, mTableName + ": published " + count + " row(s) at "
+                + generation + ", rewrote " + (count - first));
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        try {
+            mReadOnlyDescriptor.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close snapshot file of " + mTableName, e);
+        }
+    }
+
+    private int putChars(int offset, String value) {
+        if (value == null) {
+            mBuffer.putInt(offset, -1);
+            return offset + 4;
+        }
+        final int length = value.length();
+        mBuffer.putInt(offset, length);
+        offset += 4;
+        for (int i = 0; i < length; i++) {
+            mBuffer.putChar(offset, value.charAt(i));
+            offset += 2;
+        }
+        return offset;
+    }
+
+    private static boolean containsAll(ArrayMap<String, String> rows, String[] names) {
+        for (String name : names) {
+            if (!rows.containsKey(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void beginWrite() {
+        mBuffer.putLong(SEQUENCE_OFFSET, ++mSequence);
+        sUnsafe.storeFence();
+    }
+
+    private void endWrite() {
+        sUnsafe.storeFence();
+        mBuffer.putLong(SEQUENCE_OFFSET, ++mSequence);
+    }
+
+    private static Unsafe getUnsafe() {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Unsafe) field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+/**
+ * Authoritative in-memory copy of one settings table of one user. It is loaded once from its
+ * {@link SettingsStorage}, serves every read straight from memory and persists
+ * writes behind the caller's back: the first write after a flush schedules the next one on the
+ * writer thread after at most {@link #FLUSH_DELAY_MS}, and every write made until then is
+ * committed with it in a single transaction.
+ *
+ * Only rows that were written are held and persisted. Names without a row read as their
+ * {@link SettingsDefaults default}, if any.
+ *
+ * A thread may also write within a batch, which other threads neither see nor write alongside
+ * until it ends. A committed batch is persisted together with the writes before it, so all of
+ * it reaches the storage in one {@link SettingsStorage#write}; an aborted one is undone.
+ */
+public class SettingsState {
+
+    private static final String TAG = "AllianceSettingsState";
+
+    private static final boolean LOCAL_LOGV = false;
+
+    static final long FLUSH_DELAY_MS = 200;
+
+    private final SettingsStorage mStorage;
+    private final String mTableName;
+    private final Handler mWriteHandler;
+    // Shared and never modified.
+    private final ArrayMap<String, String> mDefaults;
+
+    // Guarded by mLock.
+    private final ArrayMap<String, String> mValues = new ArrayMap<>();
+    // Written but not yet persisted. Guarded by mLock.
+    private ArrayMap<String, String> mPendingWrites = new ArrayMap<>();
+    // Removed but not yet persisted, never also in mPendingWrites. Guarded by mLock.
+    private ArraySet<String> mPendingRemovals = new ArraySet<>();
+    // Guarded by mLock.
+    private boolean mFlushScheduled;
+    // Guarded by mLock.
+    private boolean mDiscarded;
+
+    // The thread writing within a batch, or null. Guarded by mLock.
+    private Thread mBatchOwner;
+    // Written and removed within the batch, only pending once it commits. Guarded by mLock.
+    private ArrayMap<String, String> mBatchWrites = new ArrayMap<>();
+    private ArraySet<String> mBatchRemovals = new ArraySet<>();
+    // What the names the batch changed held before it, to read for other threads and to undo
+    // the batch with: their row, or none for those in mBatchAdded. Guarded by mLock.
+    private final ArrayMap<String, String> mBatchSaved = new ArrayMap<>();
+    private final ArraySet<String> mBatchAdded = new ArraySet<>();
+
+    private final Object mLock = new Object();
+    // Held for the whole of a flush, so flushes reach the database in the order of the writes.
+    private final Object mFlushLock = new Object();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mFlushScheduled = false;
+            }
+            try {
+                flush();
+            } catch (SQLiteException | IllegalStateException e) {
+                // The writes were put back and are retried after the flush delay.
+                Log.e(TAG, "Failed to persist " + mTableName + " settings", e);
+            }
+        }
+    };
+
+    public SettingsState(SettingsStorage storage, String tableName,
+            ArrayMap<String, String> defaults, Handler writeHandler) {
+        mStorage = storage;
+        mTableName = tableName;
+        mDefaults = defaults;
+        mWriteHandler = writeHandler;
+        synchronized (mLock) {
+            loadLocked();
+        }
+    }
+
+    public String getTableName() {
+        return mTableName;
+    }
+
+    /**
+     * @return Whether the table holds a row or a default for the name, even one with a null
+     * value.
+     */
+    public boolean containsKey(String name) {
+        synchronized (mLock) {
+            if (isHiddenByBatchLocked(name)) {
+                return mBatchSaved.containsKey(name) || mDefaults.containsKey(name);
+            }
+            return mValues.containsKey(name) || mDefaults.containsKey(name);
+        }
+    }
+
+    public String getValue(String name) {
+        synchronized (mLock) {
+            if (isHiddenByBatchLocked(name)) {
+                final int index = mBatchSaved.indexOfKey(name);
+                return index >= 0 ? mBatchSaved.valueAt(index) : mDefaults.get(name);
+            }
+            final int index = mValues.indexOfKey(name);
+            return index >= 0 ? mValues.valueAt(index) : mDefaults.get(name);
+        }
+    }
+
+    /**
+     * @return A copy of every row of the table, defaults included.
+     */
+    public ArrayMap<String, String> getAll() {
+        synchronized (mLock) {
+            ArrayMap<String, String> rows = new ArrayMap<>(mDefaults.size() + mValues.size());
+            rows.putAll(mDefaults);
+            rows.putAll(mValues);
+            if (mBatchOwner != null && mBatchOwner != Thread.currentThread()) {
+                for (int i = 0; i < mBatchAdded.size(); i++) {
+                    final String name = mBatchAdded.valueAt(i);
+                    if (mDefaults.containsKey(name)) {
+                        rows.put(name, mDefaults.get(name));
+                    } else {
+                        rows.remove(name);
+                    }
+                }
+                rows.putAll(mBatchSaved);
+            }
+            return rows;
+        }
+    }
+
+    public void put(String name, String value) {
+        synchronized (mLock) {
+            awaitBatchLocked();
+            putLocked(name, value);
+            scheduleFlushLocked();
+        }
+    }
+
+    public void putAll(String[] names, String[] values) {
+        synchronized (mLock) {
+            awaitBatchLocked();
+            for (int i = 0; i < names.length; i++) {
+                putLocked(names[i], values[i]);
+            }
+            scheduleFlushLocked();
+        }
+    }
+
+    private void putLocked(String name, String value) {
+        if (mBatchOwner != null) {
+            saveForBatchLocked(name);
+            mBatchWrites.put(name, value);
+            mBatchRemovals.remove(name);
+        } else {
+            mPendingWrites.put(name, value);
+            mPendingRemovals.remove(name);
+        }
+        mValues.put(name, value);
+    }
+
+    /**
+     * Removes the rows of the names, which then read as their default again.
+     * @return The names of the rows that were removed.
+     */
+    public String[] removeAll(String[] names) {
+        ArraySet<String> removed = new ArraySet<>();
+        synchronized (mLock) {
+            awaitBatchLocked();
+            for (String name : names) {
+                if (mValues.containsKey(name)) {
+                    if (mBatchOwner != null) {
+                        saveForBatchLocked(name);
+                        mBatchWrites.remove(name);
+                        mBatchRemovals.add(name);
+                    } else {
+                        mPendingWrites.remove(name);
+                        mPendingRemovals.add(name);
+                    }
+                    mValues.remove(name);
+                    removed.add(name);
+                }
+            }
+            scheduleFlushLocked();
+        }
+        return removed.toArray(new String[removed.size()]);
+    }
+
+    /**
+     * Starts a batch on the calling thread, once any batch of another thread has ended. Until
+     * it ends, its writes are only seen by the calling thread and are not persisted, and
+     * other threads wait to write.
+     */
+    public void beginBatch() {
+        synchronized (mLock) {
+            awaitBatchLocked();
+            if (mBatchOwner != null) {
+                throw new IllegalStateException("Batch already started on " + mTableName);
+            }
+            mBatchOwner = Thread.currentThread();
+        }
+    }
+
+    /**
+     * Ends the batch of the calling thread, making its writes pending as a whole.
+     */
+    public void commitBatch() {
+        synchronized (mLock) {
+            checkBatchOwnerLocked();
+            if (!mDiscarded) {
+                for (int i = 0; i < mBatchWrites.size(); i++) {
+                    mPendingWrites.put(mBatchWrites.keyAt(i), mBatchWrites.valueAt(i));
+                    mPendingRemovals.remove(mBatchWrites.keyAt(i));
+                }
+                for (int i = 0; i < mBatchRemovals.size(); i++) {
+                    mPendingWrites.remove(mBatchRemovals.valueAt(i));
+                    mPendingRemovals.add(mBatchRemovals.valueAt(i));
+                }
+            }
+            endBatchLocked();
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Ends the batch of the calling thread, undoing its writes.
+     */
+    public void abortBatch() {
+        synchronized (mLock) {
+            checkBatchOwnerLocked();
+            for (int i = 0; i < mBatchAdded.size(); i++) {
+                mValues.remove(mBatchAdded.valueAt(i));
+            }
+            mValues.putAll(mBatchSaved);
+            endBatchLocked();
+        }
+    }
+
+    private void checkBatchOwnerLocked() {
+        if (mBatchOwner != Thread.currentThread()) {
+            throw new IllegalStateException("No batch started on " + mTableName);
+        }
+    }
+
+    private void endBatchLocked() {
+        mBatchOwner = null;
+        mBatchWrites = new ArrayMap<>();
+        mBatchRemovals = new ArraySet<>();
+        mBatchSaved.clear();
+        mBatchAdded.clear();
+        mLock.notifyAll();
+    }
+
+    private void awaitBatchLocked() {
+        boolean interrupted = false;
+        while (mBatchOwner != null && mBatchOwner != Thread.currentThread()) {
+            try {
+                mLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Records what the name held before the batch first changed it.
+    private void saveForBatchLocked(String name) {
+        if (mBatchSaved.containsKey(name) || mBatchAdded.contains(name)) {
+            return;
+        }
+        final int index = mValues.indexOfKey(name);
+        if (index >= 0) {
+            mBatchSaved.put(name, mValues.valueAt(index));
+        } else {
+            mBatchAdded.add(name);
+        }
+    }
+
+    /**
+     * @return Whether the name was changed by a batch of another thread, which must not see it.
+     */
+    private boolean isHiddenByBatchLocked(String name) {
+        return mBatchOwner != null && mBatchOwner != Thread.currentThread()
+                && (mBatchSaved.containsKey(name) || mBatchAdded.contains(name));
+    }
+
+    /**
+     * Persists the pending writes and then reads the table back, for after the storage was
+     * changed underneath us.
+     */
+    public void reload() {
+        synchronized (mFlushLock) {
+            synchronized (mLock) {
+                ArraySet<String> removals = mPendingRemovals;
+                ArrayMap<String, String> writes = takePendingWritesLocked();
+                try {
+                    writeToStorage(writes, removals);
+                } catch (RuntimeException e) {
+                    restorePendingWritesLocked(writes, removals);
+                    throw e;
+                }
+                loadLocked();
+            }
+        }
+    }
+
+    /**
+     * Persists every pending write at once, on whichever thread calls it.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            ArrayMap<String, String> writes;
+            ArraySet<String> removals;
+            synchronized (mLock) {
+                removals = mPendingRemovals;
+                writes = takePendingWritesLocked();
+            }
+            try {
+                writeToStorage(writes, removals);
+            } catch (RuntimeException e) {
+                synchronized (mLock) {
+                    restorePendingWritesLocked(writes, removals);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stops persisting anything further, for when the user is gone.
+     */
+    public void discard() {
+        synchronized (mLock) {
+            mWriteHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            mDiscarded = true;
+            mPendingWrites.clear();
+            mPendingRemovals.clear();
+            mBatchWrites.clear();
+            mBatchRemovals.clear();
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        // Only the first write since the last flush schedules one, so no write waits longer
+        // than the flush delay however busy the table is.
+        if ((mPendingWrites.size() > 0 || mPendingRemovals.size() > 0) && !mFlushScheduled) {
+            mWriteHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+            mFlushScheduled = true;
+        }
+    }
+
+    private ArrayMap<String, String> takePendingWritesLocked() {
+        mWriteHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+        ArrayMap<String, String> writes = mPendingWrites;
+        mPendingWrites = new ArrayMap<>();
+        mPendingRemovals = new ArraySet<>();
+        return writes;
+    }
+
+    /**
+     * Puts back the writes of a flush that failed and schedules another. Names written or
+     * removed again since the flush took them keep their newer state.
+     */
+    private void restorePendingWritesLocked(ArrayMap<String, String> writes,
+            ArraySet<String> removals) {
+        if (mDiscarded) {
+            return;
+        }
+        for (int i = 0; i < writes.size(); i++) {
+            final String name = writes.keyAt(i);
+            if (!mPendingWrites.containsKey(name) && !mPendingRemovals.contains(name)) {
+                mPendingWrites.put(name, writes.valueAt(i));
+            }
+        }
+        for (int i = 0; i < removals.size(); i++) {
+            final String name = removals.valueAt(i);
+            if (!mPendingWrites.containsKey(name) && !mPendingRemovals.contains(name)) {
+                mPendingRemovals.add(name);
+            }
+        }
+        scheduleFlushLocked();
+    }
+
+    // Called with mFlushLock held.
+    private void writeToStorage(ArrayMap<String, String> writes, ArraySet<String> removals) {
+        final int count = writes.size() + removals.size();
+        if (count == 0) {
+            return;
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        mStorage.write(writes, removals);
+        if (LOCAL_LOGV) Log.d(TAG, mTableName + ": persisted " + count + " row(s) in "
+                + (SystemClock.uptimeMillis() - startTime) + " milliseconds");
+    }
+
+    private void loadLocked() {
+        mValues.clear();
+        mStorage.load(mValues);
+        if (LOCAL_LOGV) Log.d(TAG, mTableName + ": loaded " + mValues.size() + " row(s)");
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+/**
+ * Persistent store behind the {@link SettingsState} of one settings table of one user. Only
+ * ever called by that state, which serializes the calls.
+ */
+public interface SettingsStorage {
+
+    /**
+     * Reads every row of the table.
+     * @param rows Receives the rows.
+     */
+    void load(ArrayMap<String, String> rows);
+
+    /**
+     * Persists a set of changes as a whole.
+     * @param writes The rows written, mapped to their new values.
+     * @param removals The names of the rows removed, none of which are in writes.
+     */
+    void write(ArrayMap<String, String> writes, ArraySet<String> removals);
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+/**
+ * Stores a settings table in the user's alliancesettings.db through its
+ * {@link AllianceDatabaseHelper}.
+ */
+public class SqliteSettingsStorage implements SettingsStorage {
+
+    private static final String NAME_SELECTION = Settings.NameValueTable.NAME + " = ?";
+
+    private final AllianceDatabaseHelper mDbHelper;
+    private final String mTableName;
+
+    public SqliteSettingsStorage(AllianceDatabaseHelper dbHelper, String tableName) {
+        mDbHelper = dbHelper;
+        mTableName = tableName;
+    }
+
+    @Override
+    public void load(ArrayMap<String, String> rows) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.query(mTableName, new String[] {
+                Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                null, null, null, null, null);
+        try {
+            rows.ensureCapacity(rows.size() + cursor.getCount());
+            while (cursor.moveToNext()) {
+                rows.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void write(ArrayMap<String, String> writes, ArraySet<String> removals) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < writes.size(); i++) {
+                mDbHelper.upsert(mTableName, writes.keyAt(i), writes.valueAt(i));
+            }
+            for (int i = 0; i < removals.size(); i++) {
+                db.delete(mTableName, NAME_SELECTION, new String[] { removals.valueAt(i) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
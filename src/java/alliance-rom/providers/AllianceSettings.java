@@ -21,26 +21,32 @@ import android.content.IContentProvider;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
-import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.AndroidException;
 import android.util.ArrayMap;
-import android.util.ArraySet;
 import android.util.Log;
 
 import com.android.internal.util.ArrayUtils;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
+import sun.misc.Unsafe;
+
 /**
  * AllianceSettings contains ROM specific preferences in System, Secure, and Global.
  */
@@ -91,6 +97,126 @@ public final class AllianceSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
+    /**
+     * @hide - Private call() method on AllianceSettingsProvider to read every row of the
+     * 'system' table.
+     */
+    public static final String CALL_METHOD_LIST_SYSTEM = "LIST_system";
+
+    /**
+     * @hide - Private call() method on AllianceSettingsProvider to read every row of the
+     * 'secure' table.
+     */
+    public static final String CALL_METHOD_LIST_SECURE = "LIST_secure";
+
+    /**
+     * @hide - Private call() method on AllianceSettingsProvider to read every row of the
+     * 'global' table.
+     */
+    public static final String CALL_METHOD_LIST_GLOBAL = "LIST_global";
+
+    /**
+     * @hide - Private call() method on AllianceSettingsProvider to read the 'system' settings
+     * named in {@link #CALL_METHOD_NAMES_KEY}.
+     */
+    public static final String CALL_METHOD_GET_MULTIPLE_SYSTEM = "GET_MULTIPLE_system";
+
+    /**
+     * @hide - Private call() method on AllianceSettingsProvider to read the 'secure' settings
+     * named in {@link #CALL_METHOD_NAMES_KEY}.
+     */
+    public static final String CALL_METHOD_GET_MULTIPLE_SECURE = "GET_MULTIPLE_secure";
+
+    /**
+     * @hide - Private call() method on AllianceSettingsProvider to read the 'global' settings
+     * named in {@link #CALL_METHOD_NAMES_KEY}.
+     */
+    public static final String CALL_METHOD_GET_MULTIPLE_GLOBAL = "GET_MULTIPLE_global";
+
+    /**
+     * @hide - Names returned by the list call() methods, parallel to
+     * {@link #CALL_METHOD_VALUES_KEY}
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - Values returned by the list call() methods, parallel to
+     * {@link #CALL_METHOD_NAMES_KEY}
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
+    /**
+     * @hide - Table version the values returned by the list call() methods were read at
+     */
+    public static final String CALL_METHOD_GENERATION_KEY = "_generation";
+
+    /**
+     * @hide - Private call() method on AllianceSettingsProvider to map the generation counter
+     * of the table named by the request argument.
+     */
+    public static final String CALL_METHOD_GET_GENERATION = "GET_generation";
+
+    /**
+     * @hide - Read-only descriptor of the generation file returned by
+     * {@link #CALL_METHOD_GET_GENERATION}
+     */
+    public static final String CALL_METHOD_GENERATION_FD_KEY = "_generation_fd";
+
+    /**
+     * @hide - Index of the table's counter within the generation file returned by
+     * {@link #CALL_METHOD_GET_GENERATION}
+     */
+    public static final String CALL_METHOD_GENERATION_INDEX_KEY = "_generation_index";
+
+    /**
+     * @hide - Private call() method on AllianceSettingsProvider to map the published snapshot of
+     * the table named by the request argument.
+     */
+    public static final String CALL_METHOD_GET_SNAPSHOT = "GET_snapshot";
+
+    /**
+     * @hide - Read-only descriptor of the snapshot file returned by
+     * {@link #CALL_METHOD_GET_SNAPSHOT}
+     */
+    public static final String CALL_METHOD_SNAPSHOT_FD_KEY = "_snapshot_fd";
+
+    /**
+     * @hide - Private call() method on AllianceSettingsProvider to list the keys of the table
+     * named by the request argument that changed after the generation passed in
+     * {@link #CALL_METHOD_GENERATION_KEY}, along with their current values.
+     */
+    public static final String CALL_METHOD_LIST_CHANGES = "LIST_changes";
+
+    /**
+     * @hide - Set by {@link #CALL_METHOD_LIST_CHANGES} when the changes are no longer known and
+     * the caller has to drop everything it cached.
+     */
+    public static final String CALL_METHOD_RESYNC_KEY = "_resync";
+
+    /**
+     * @hide - Set in the arguments of the put call() methods to have observers notified before
+     * the call returns, instead of shortly after along with other changes.
+     */
+    public static final String CALL_METHOD_NOTIFY_SYNC_KEY = "_notify_sync";
+
+    /**
+     * @hide - Private call() method to write the name/value pairs in
+     * {@link #CALL_METHOD_NAMES_KEY} and {@link #CALL_METHOD_VALUES_KEY} to 'system' table
+     */
+    public static final String CALL_METHOD_PUT_MULTIPLE_SYSTEM = "PUT_MULTIPLE_system";
+
+    /**
+     * @hide - Private call() method to write the name/value pairs in
+     * {@link #CALL_METHOD_NAMES_KEY} and {@link #CALL_METHOD_VALUES_KEY} to 'secure' table
+     */
+    public static final String CALL_METHOD_PUT_MULTIPLE_SECURE = "PUT_MULTIPLE_secure";
+
+    /**
+     * @hide - Private call() method to write the name/value pairs in
+     * {@link #CALL_METHOD_NAMES_KEY} and {@link #CALL_METHOD_VALUES_KEY} to 'global' table
+     */
+    public static final String CALL_METHOD_PUT_MULTIPLE_GLOBAL = "PUT_MULTIPLE_global";
+
     /**
      * @hide - Private call() method on AllianceSettingsProvider to migrate Alliance settings
      */
@@ -101,47 +227,686 @@ public final class AllianceSettings {
      */
     public static final String CALL_METHOD_MIGRATE_SETTINGS_FOR_USER = "migrate_settings_for_user";
 
+    /**
+     * @hide - Users returned by {@link #CALL_METHOD_MIGRATE_SETTINGS} whose settings are not
+     * migrated yet, as an int array
+     */
+    public static final String CALL_METHOD_PENDING_USERS_KEY = "_pending_users";
+
     // endregion
 
+    // Maps the generation counters that AllianceSettingsProvider publishes for each table, so
+    // checking whether a cached table is still current costs a single memory load.
+    private static final class GenerationTracker {
+        private static final int SLOT_SIZE = 8;
+
+        private final MappedByteBuffer mBuffer;
+        private final int mOffset;
+
+        private GenerationTracker(MappedByteBuffer buffer, int offset) {
+            mBuffer = buffer;
+            mOffset = offset;
+        }
+
+        public long getGeneration() {
+            return mBuffer.getLong(mOffset);
+        }
+
+        /**
+         * Asks the provider for the generation file of a table and maps it.
+         * @return The tracker, or null if the provider could not hand out the file.
+         */
+        public static GenerationTracker acquire(ContentResolver cr, IContentProvider cp,
+                String tableName) {
+            ParcelFileDescriptor pfd = null;
+            try {
+                Bundle b = cp.call(cr.getPackageName(), CALL_METHOD_GET_GENERATION, tableName,
+                        null);
+                if (b == null) {
+                    return null;
+                }
+                pfd = b.getParcelable(CALL_METHOD_GENERATION_FD_KEY);
+                final int index = b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1);
+                if (pfd == null || index < 0) {
+                    return null;
+                }
+                FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+                return new GenerationTracker(buffer, index * SLOT_SIZE);
+            } catch (RemoteException | IOException e) {
+                Log.w(TAG, "Can't map generation of " + tableName, e);
+                return null;
+            } finally {
+                if (pfd != null) {
+                    try {
+                        // The mapping stays valid once the descriptor is closed.
+                        pfd.close();
+                    } catch (IOException e) {
+                        // Ignore.
+                    }
+                }
+            }
+        }
+    }
+
+    // Read side of the provider's published snapshot of a table: its rows sorted by name in a
+    // mapped file, with a sequence the provider makes odd while it rewrites them.  Lookups retry
+    // when they race a rewrite, and give up if the snapshot is not at the wanted generation.
+    private static final class SnapshotReader {
+        // Must match the layout written by SettingsSnapshot in AllianceSettingsProvider.
+        private static final int MAGIC = 0x414c5353;
+        private static final int MAGIC_OFFSET = 0;
+        private static final int COUNT_OFFSET = 4;
+        private static final int SEQUENCE_OFFSET = 8;
+        private static final int GENERATION_OFFSET = 16;
+        private static final int HEADER_SIZE = 24;
+
+        private static final int MAX_ATTEMPTS = 3;
+
+        // The provider writes the mapping from its own process, which no Java volatile can
+        // order accesses for, so the reads of the sequence and of the rows are kept apart by
+        // explicit fences.
+        private static final Unsafe sUnsafe = getUnsafe();
+
+        private final MappedByteBuffer mBuffer;
+        private final int mCapacity;
+
+        private SnapshotReader(MappedByteBuffer buffer) {
+            mBuffer = buffer;
+            mCapacity = buffer.capacity();
+        }
+
+        public long getGeneration() {
+            return mBuffer.getLong(GENERATION_OFFSET);
+        }
+
+        /**
+         * @param name The name of the key to look up.
+         * @param generation The generation the caller's cache is at.
+         * @return The entry of the key, {@link CacheEntry#NULL} if the table has no such row,
+         * or null if the snapshot can not answer for the given generation.
+         */
+        public CacheEntry lookup(String name, long generation) {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                final long sequence = mBuffer.getLong(SEQUENCE_OFFSET);
+                if ((sequence & 1) != 0) {
+                    continue;
+                }
+                sUnsafe.loadFence();
+                CacheEntry entry;
+                try {
+                    entry = find(name, generation);
+                } catch (IndexOutOfBoundsException e) {
+                    // Read half-way through a rewrite; the sequence tells.
+                    entry = null;
+                }
+                sUnsafe.loadFence();
+                if (mBuffer.getLong(SEQUENCE_OFFSET) == sequence) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private CacheEntry find(String name, long generation) {
+            if (mBuffer.getInt(MAGIC_OFFSET) != MAGIC
+                    || mBuffer.getLong(GENERATION_OFFSET) != generation) {
+                return null;
+            }
+            final int count = mBuffer.getInt(COUNT_OFFSET);
+            if (count < 0 || count > (mCapacity - HEADER_SIZE) / 4) {
+                return null;
+            }
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int offset = mBuffer.getInt(HEADER_SIZE + mid * 4);
+                final int result = compareName(offset, name);
+                if (result < 0) {
+                    low = mid + 1;
+                } else if (result > 0) {
+                    high = mid - 1;
+                } else {
+                    return CacheEntry.forValue(getString(offset + 4 + name.length() * 2));
+                }
+            }
+            return CacheEntry.NULL;
+        }
+
+        // Same order as String.compareTo(), which the provider sorted the rows by.
+        private int compareName(int offset, String name) {
+            final int length = mBuffer.getInt(offset);
+            final int common = Math.min(length, name.length());
+            offset += 4;
+            for (int i = 0; i < common; i++) {
+                final int result = mBuffer.getChar(offset + i * 2) - name.charAt(i);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return length - name.length();
+        }
+
+        private String getString(int offset) {
+            final int length = mBuffer.getInt(offset);
+            if (length == -1) {
+                return null;
+            }
+            if (length < 0 || length > mCapacity / 2) {
+                throw new IndexOutOfBoundsException("Invalid length " + length);
+            }
+            char[] chars = new char[length];
+            offset += 4;
+            for (int i = 0; i < length; i++) {
+                chars[i] = mBuffer.getChar(offset + i * 2);
+            }
+            return new String(chars);
+        }
+
+        private static Unsafe getUnsafe() {
+            try {
+                Field field = Unsafe.class.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return (Unsafe) field.get(null);
+            } catch (ReflectiveOperationException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * Asks the provider for the snapshot file of a table and maps it.
+         * @return The reader, or null if the provider could not hand out the file.
+         */
+        public static SnapshotReader acquire(ContentResolver cr, IContentProvider cp,
+                String tableName) {
+            ParcelFileDescriptor pfd = null;
+            try {
+                Bundle b = cp.call(cr.getPackageName(), CALL_METHOD_GET_SNAPSHOT, tableName,
+                        null);
+                if (b == null) {
+                    return null;
+                }
+                pfd = b.getParcelable(CALL_METHOD_SNAPSHOT_FD_KEY);
+                if (pfd == null) {
+                    return null;
+                }
+                FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+                return new SnapshotReader(buffer);
+            } catch (RemoteException | IOException e) {
+                Log.w(TAG, "Can't map snapshot of " + tableName, e);
+                return null;
+            } finally {
+                if (pfd != null) {
+                    try {
+                        // The mapping stays valid once the descriptor is closed.
+                        pfd.close();
+                    } catch (IOException e) {
+                        // Ignore.
+                    }
+                }
+            }
+        }
+    }
+
+    // A cached setting value together with what it parsed to as each numeric type.  Each type is
+    // parsed at most once per entry, so typed reads of a cached setting neither parse nor
+    // allocate.  Thread-safe: the parsed fields are published by the volatile write of mFlags,
+    // and a racing update that loses another type's flag only costs a second parse.
+    private static final class CacheEntry {
+        private static final int INT_PARSED = 1 << 0;
+        private static final int INT_VALID = 1 << 1;
+        private static final int LONG_PARSED = 1 << 2;
+        private static final int LONG_VALID = 1 << 3;
+        private static final int FLOAT_PARSED = 1 << 4;
+        private static final int FLOAT_VALID = 1 << 5;
+
+        // Shared by every setting that is not defined.
+        static final CacheEntry NULL = new CacheEntry(null);
+
+        final String mValue;
+
+        private volatile int mFlags;
+        private int mInt;
+        private long mLong;
+        private float mFloat;
+
+        private CacheEntry(String value) {
+            mValue = value;
+        }
+
+        static CacheEntry forValue(String value) {
+            return value == null ? NULL : new CacheEntry(value);
+        }
+
+        /** @return Whether the value is a valid integer, available from {@link #getInt}. */
+        boolean hasInt() {
+            int flags = mFlags;
+            if ((flags & INT_PARSED) == 0) {
+                flags = INT_PARSED;
+                if (mValue != null) {
+                    try {
+                        mInt = Integer.parseInt(mValue);
+                        flags |= INT_VALID;
+                    } catch (NumberFormatException e) {
+                        // Remembered as invalid.
+                    }
+                }
+                flags = mFlags |= flags;
+            }
+            return (flags & INT_VALID) != 0;
+        }
+
+        int getInt() {
+            return mInt;
+        }
+
+        /** @return Whether the value is a valid long, available from {@link #getLong}. */
+        boolean hasLong() {
+            int flags = mFlags;
+            if ((flags & LONG_PARSED) == 0) {
+                flags = LONG_PARSED;
+                if (mValue != null) {
+                    try {
+                        mLong = Long.parseLong(mValue);
+                        flags |= LONG_VALID;
+                    } catch (NumberFormatException e) {
+                        // Remembered as invalid.
+                    }
+                }
+                flags = mFlags |= flags;
+            }
+            return (flags & LONG_VALID) != 0;
+        }
+
+        long getLong() {
+            return mLong;
+        }
+
+        /** @return Whether the value is a valid float, available from {@link #getFloat}. */
+        boolean hasFloat() {
+            int flags = mFlags;
+            if ((flags & FLOAT_PARSED) == 0) {
+                flags = FLOAT_PARSED;
+                if (mValue != null) {
+                    try {
+                        mFloat = Float.parseFloat(mValue);
+                        flags |= FLOAT_VALID;
+                    } catch (NumberFormatException e) {
+                        // Remembered as invalid.
+                    }
+                }
+                flags = mFlags |= flags;
+            }
+            return (flags & FLOAT_VALID) != 0;
+        }
+
+        float getFloat() {
+            return mFloat;
+        }
+    }
+
     // Thread-safe.
     private static class NameValueCache {
-        private final String mVersionSystemProperty;
         private final Uri mUri;
 
         private static final String[] SELECT_VALUE = new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
-        private final HashMap<String, String> mValues = new HashMap<String, String>();
-        private long mValuesVersion = 0;
+        // The values read while the version property held a given value.  A new instance is
+        // swapped in whenever the version changes, so a cache hit never needs to lock.
+        private static final class Generation {
+            final long mVersion;
+            final ConcurrentHashMap<String, CacheEntry> mValues =
+                    new ConcurrentHashMap<String, CacheEntry>();
+
+            // Set once every row of the table has been loaded at this version, after which a
+            // missing key is known to be null without asking the provider.
+            volatile boolean mComplete;
+            // Guarded by 'this'; only one thread fetches the table per generation.
+            boolean mPrefetchStarted;
+
+            // Keys being fetched from the provider.  Other threads missing one of them wait for
+            // that fetch rather than starting their own.
+            final ConcurrentHashMap<String, PendingFetch> mPendingFetches =
+                    new ConcurrentHashMap<String, PendingFetch>();
+
+            Generation(long version) {
+                mVersion = version;
+            }
+        }
 
-        // Initially null; set lazily and held forever.  Synchronized on 'this'.
-        private IContentProvider mContentProvider = null;
+        // The result of a fetch of one key, handed to every thread that waited for it.
+        private static final class PendingFetch {
+            // Guarded by 'this'.
+            private CacheEntry mEntry;
+            private boolean mDone;
+
+            synchronized void complete(CacheEntry entry) {
+                mEntry = entry;
+                mDone = true;
+                notifyAll();
+            }
+
+            synchronized CacheEntry await() {
+                boolean interrupted = false;
+                while (!mDone) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return mEntry;
+            }
+        }
+
+        // The generation being built by a catch up, handed to every thread that waited for it.
+        private static final class PendingGeneration {
+            final long mVersion;
+            // Guarded by 'this'.
+            private Generation mGeneration;
+
+            PendingGeneration(long version) {
+                mVersion = version;
+            }
+
+            synchronized void complete(Generation generation) {
+                mGeneration = generation;
+                notifyAll();
+            }
+
+            synchronized Generation await() {
+                boolean interrupted = false;
+                while (mGeneration == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return mGeneration;
+            }
+        }
+
+        // Only replaced while holding 'this', and only by a newer version; read without locking.
+        private volatile Generation mGeneration = new Generation(0);
+
+        // The latest catch up in flight, or null. Guarded by 'this', which is never held across
+        // a call to the provider.
+        private PendingGeneration mPendingGeneration;
+
+        // Initially null; set lazily and held forever.
+        private volatile IContentProvider mContentProvider = null;
+
+        // Initially null; set lazily once the provider hands out the table's generation and
+        // held forever.  Only asked for once, so a provider that can not publish generations
+        // costs a single failed call rather than one per read.
+        private volatile GenerationTracker mGenerationTracker = null;
+        private volatile boolean mGenerationRequested;
+
+        // Initially null; set lazily once the provider hands out the table's snapshot and held
+        // forever.  Only asked for once, the provider may not publish snapshots.
+        private volatile SnapshotReader mSnapshotReader = null;
+        private volatile boolean mSnapshotRequested;
 
         // The method we'll call (or null, to not use) on the provider
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
         private final String mCallSetCommand;
+        private final String mCallListCommand;
+        private final String mCallGetMultipleCommand;
+        private final String mCallSetMultipleCommand;
+
+        // Set for a table that only holds declared keys, so any other name is known to be
+        // null without looking, for every user.
+        private final Schema mDeclaredKeys;
 
-        public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand) {
-            mVersionSystemProperty = versionSystemProperty;
+        public NameValueCache(Uri uri, String getCommand, String setCommand,
+                String listCommand, String getMultipleCommand, String setMultipleCommand,
+                Schema declaredKeys) {
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mCallListCommand = listCommand;
+            mCallGetMultipleCommand = getMultipleCommand;
+            mCallSetMultipleCommand = setMultipleCommand;
+            mDeclaredKeys = declaredKeys;
+        }
+
+        /**
+         * @return Whether the table can not hold the key, which then needs no lookup at all.
+         */
+        private boolean isImpossibleKey(String name) {
+            return mDeclaredKeys != null && !mDeclaredKeys.isKnownKey(name);
         }
 
+        // The lazy getters acquire outside of 'this' and keep whichever result is published
+        // first, so a slow provider never holds up threads that only need the cache.
+
         private IContentProvider lazyGetProvider(ContentResolver cr) {
-            IContentProvider cp;
-            synchronized (this) {
-                cp = mContentProvider;
-                if (cp == null) {
-                    cp = mContentProvider = cr.acquireProvider(mUri.getAuthority());
+            IContentProvider cp = mContentProvider;
+            if (cp == null) {
+                IContentProvider acquired = cr.acquireProvider(mUri.getAuthority());
+                synchronized (this) {
+                    cp = mContentProvider;
+                    if (cp == null) {
+                        cp = mContentProvider = acquired;
+                        acquired = null;
+                    }
+                }
+                if (acquired != null) {
+                    cr.releaseProvider(acquired);
                 }
             }
             return cp;
         }
 
+        private GenerationTracker lazyGetGenerationTracker(ContentResolver cr) {
+            GenerationTracker tracker = mGenerationTracker;
+            if (tracker == null && !mGenerationRequested) {
+                GenerationTracker acquired = GenerationTracker.acquire(cr, lazyGetProvider(cr),
+                        mUri.getLastPathSegment());
+                synchronized (this) {
+                    if (!mGenerationRequested) {
+                        mGenerationTracker = acquired;
+                        mGenerationRequested = true;
+                    }
+                    tracker = mGenerationTracker;
+                }
+            }
+            return tracker;
+        }
+
+        private SnapshotReader lazyGetSnapshotReader(ContentResolver cr) {
+            SnapshotReader reader = mSnapshotReader;
+            if (reader == null && !mSnapshotRequested) {
+                SnapshotReader acquired = SnapshotReader.acquire(cr, lazyGetProvider(cr),
+                        mUri.getLastPathSegment());
+                synchronized (this) {
+                    if (!mSnapshotRequested) {
+                        mSnapshotReader = acquired;
+                        mSnapshotRequested = true;
+                    }
+                    reader = mSnapshotReader;
+                }
+            }
+            return reader;
+        }
+
+        /**
+         * Returns the cache generation for the given version, replacing the current one if the
+         * version has moved on since it was created.  When the snapshot has already caught up
+         * with the version, the replacement starts out empty and fills from the snapshot,
+         * without asking the provider what changed.  Only one thread catches up to a version;
+         * the others that need it wait for its result.
+         */
+        private Generation getGeneration(ContentResolver cr, long version) {
+            Generation previous = mGeneration;
+            if (previous.mVersion >= version) {
+                // Another thread may have caught up past what we asked for.
+                return previous;
+            }
+            final PendingGeneration pending;
+            final boolean waiting;
+            synchronized (this) {
+                previous = mGeneration;
+                if (previous.mVersion >= version) {
+                    return previous;
+                }
+                waiting = mPendingGeneration != null && mPendingGeneration.mVersion >= version;
+                if (!waiting) {
+                    mPendingGeneration = new PendingGeneration(version);
+                }
+                pending = mPendingGeneration;
+            }
+            if (waiting) {
+                return pending.await();
+            }
+
+            Generation generation = null;
+            try {
+                SnapshotReader reader = mSnapshotReader;
+                if (reader != null && reader.getGeneration() == version) {
+                    generation = new Generation(version);
+                } else {
+                    generation = catchUp(cr, previous, version);
+                }
+            } finally {
+                if (generation == null) {
+                    // The catch up threw, so the cache can only start over.
+                    generation = new Generation(version);
+                }
+                synchronized (this) {
+                    // A later catch up may have finished first, and is not to be undone.
+                    if (mGeneration.mVersion < generation.mVersion) {
+                        mGeneration = generation;
+                    }
+                    if (mPendingGeneration == pending) {
+                        mPendingGeneration = null;
+                    }
+                }
+                pending.complete(generation);
+            }
+            return generation;
+        }
+
+        /**
+         * Builds the generation that follows the given one.  The keys written in between are
+         * refreshed with the values the provider sends along and the rest of the cache is
+         * carried over, unless the provider can no longer tell which keys those were, in which
+         * case the new generation starts out empty.
+         * @param cr The content resolver to use.
+         * @param previous The generation being replaced.
+         * @param version The version to catch up to.
+         * @return The new generation, at or past the given version.
+         */
+        private Generation catchUp(ContentResolver cr, Generation previous, long version) {
+            try {
+                Bundle args = new Bundle();
+                args.putLong(CALL_METHOD_GENERATION_KEY, previous.mVersion);
+                Bundle b = lazyGetProvider(cr).call(cr.getPackageName(),
+                        CALL_METHOD_LIST_CHANGES, mUri.getLastPathSegment(), args);
+                if (b != null && !b.getBoolean(CALL_METHOD_RESYNC_KEY, false)) {
+                    String[] names = b.getStringArray(CALL_METHOD_NAMES_KEY);
+                    String[] values = b.getStringArray(CALL_METHOD_VALUES_KEY);
+                    long current = b.getLong(CALL_METHOD_GENERATION_KEY, -1);
+                    if (names != null && current >= version) {
+                        final boolean hasValues = values != null && values.length == names.length;
+                        // Read before the copy: a prefetch may complete the previous
+                        // generation while we copy, and the rows it adds would then be missed.
+                        final boolean previousComplete = previous.mComplete;
+                        Generation generation = new Generation(current);
+                        generation.mValues.putAll(previous.mValues);
+                        // Applied after the copy, so that a stale value another thread stored
+                        // into the previous generation in the meantime does not survive.
+                        for (int i = 0; i < names.length; i++) {
+                            if (names[i] == null) {
+                                continue;
+                            }
+                            if (hasValues) {
+                                generation.mValues.put(names[i], CacheEntry.forValue(values[i]));
+                            } else {
+                                generation.mValues.remove(names[i]);
+                            }
+                        }
+                        // Every changed key was refreshed, so a complete table stays complete.
+                        generation.mComplete = hasValues && previousComplete;
+                        if (LOCAL_LOGV) {
+                            Log.v(TAG, (hasValues ? "refresh [" : "invalidate [")
+                                    + mUri.getLastPathSegment() + "]: " + names.length
+                                    + " key(s) changed from " + previous.mVersion + " to "
+                                    + current);
+                        }
+                        return generation;
+                    }
+                }
+            } catch (RemoteException e) {
+                // Fall through and drop everything.
+            }
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
+                        + version + " != cached " + previous.mVersion);
+            }
+            return new Generation(version);
+        }
+
+        /**
+         * Loads every row of the table into the given generation with a single call to the
+         * provider.  Only the first caller for a generation does any work, and the rows are
+         * discarded if the provider has already moved on to a different version.
+         * @param cr The content resolver to use.
+         * @param cp The provider to load the table from.
+         * @param generation The generation to fill.
+         */
+        private void prefetch(ContentResolver cr, IContentProvider cp, Generation generation) {
+            synchronized (generation) {
+                if (generation.mPrefetchStarted) {
+                    return;
+                }
+                generation.mPrefetchStarted = true;
+            }
+
+            try {
+                Bundle b = cp.call(cr.getPackageName(), mCallListCommand, null, null);
+                if (b == null) {
+                    return;
+                }
+                long version = b.getLong(CALL_METHOD_GENERATION_KEY, -1);
+                if (version != generation.mVersion) {
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "discarding prefetch [" + mUri.getLastPathSegment()
+                                + "]: read at " + version + ", cached " + generation.mVersion);
+                    }
+                    return;
+                }
+                String[] names = b.getStringArray(CALL_METHOD_NAMES_KEY);
+                String[] values = b.getStringArray(CALL_METHOD_VALUES_KEY);
+                if (names == null || values == null || names.length != values.length) {
+                    return;
+                }
+                for (int i = 0; i < names.length; i++) {
+                    generation.mValues.put(names[i], CacheEntry.forValue(values[i]));
+                }
+                generation.mComplete = true;
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "prefetched [" + mUri.getLastPathSegment() + "]: "
+                            + names.length + " rows at " + version);
+                }
+            } catch (RemoteException e) {
+                // Not supported by the remote side?  Fall back to single lookups.
+            }
+        }
+
         /**
          * Puts a string name/value pair into the content provider for the specified user.
          * @param cr The content resolver to use.
@@ -162,45 +927,254 @@ public final class AllianceSettings {
                 Log.w(TAG, "Can't set key " + name + " in " + mUri, e);
                 return false;
             }
-            return true;
+            return true;
+        }
+
+        /**
+         * Puts several string name/value pairs into the content provider for the specified user
+         * with a single request.  The provider either writes all of them or none.
+         * @param cr The content resolver to use.
+         * @param values The name/value pairs to put into the content provider.
+         * @param userId The user id to use for the content provider.
+         * @return Whether the put was successful.
+         */
+        public boolean putStringsForUser(ContentResolver cr, Map<String, String> values,
+                final int userId) {
+            final int size = values.size();
+            String[] names = new String[size];
+            String[] newValues = new String[size];
+            int i = 0;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                names[i] = entry.getKey();
+                newValues[i] = entry.getValue();
+                i++;
+            }
+            try {
+                Bundle arg = new Bundle();
+                arg.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                arg.putStringArray(CALL_METHOD_VALUES_KEY, newValues);
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = lazyGetProvider(cr);
+                cp.call(cr.getPackageName(), mCallSetMultipleCommand, null, arg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set " + size + " key(s) in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Gets a string value with the specified name from the name/value cache if possible. If
+         * not, it will use the content resolver and perform a query.
+         * @param cr Content resolver to use if name/value cache does not contain the name or if
+         *           the cache version is older than the current version.
+         * @param name The name of the key to search for.
+         * @param userId The user id of the cache to look in.
+         * @return The string value of the specified key.
+         */
+        public String getStringForUser(ContentResolver cr, String name, final int userId) {
+            return getEntryForUser(cr, name, userId).mValue;
+        }
+
+        /**
+         * Gets several string values at once.  Whatever is not in the name/value cache is read
+         * with a single request to the provider, and the cache is filled with the results,
+         * including the names that have no value.
+         * @param cr Content resolver to use for the names the cache cannot answer.
+         * @param names The names of the keys to search for.
+         * @param userId The user id of the cache to look in.
+         * @return The string values of the specified keys, in the same order.
+         */
+        public String[] getStringsForUser(ContentResolver cr, String[] names, final int userId) {
+            final String[] values = new String[names.length];
+            final boolean isSelf = (userId == UserHandle.myUserId());
+            Generation generation = null;
+            GenerationTracker tracker = isSelf ? lazyGetGenerationTracker(cr) : null;
+
+            // Indices of the names the cache could not answer.
+            int[] missing = new int[names.length];
+            int missingCount = 0;
+            if (tracker != null) {
+                generation = getGeneration(cr, tracker.getGeneration());
+                SnapshotReader reader = lazyGetSnapshotReader(cr);
+                for (int i = 0; i < names.length; i++) {
+                    if (isImpossibleKey(names[i])) {
+                        continue;
+                    }
+                    CacheEntry cached = generation.mValues.get(names[i]);
+                    if (cached == null && !generation.mComplete && reader != null) {
+                        cached = reader.lookup(names[i], generation.mVersion);
+                        if (cached != null) {
+                            generation.mValues.put(names[i], cached);
+                        }
+                    }
+                    if (cached != null) {
+                        values[i] = cached.mValue;
+                    } else if (!generation.mComplete) {
+                        missing[missingCount++] = i;
+                    }
+                }
+            } else {
+                for (int i = 0; i < names.length; i++) {
+                    if (!isImpossibleKey(names[i])) {
+                        missing[missingCount++] = i;
+                    }
+                }
+            }
+            if (missingCount == 0) {
+                return values;
+            }
+
+            String[] missingNames = new String[missingCount];
+            for (int i = 0; i < missingCount; i++) {
+                missingNames[i] = names[missing[i]];
+            }
+
+            String[] missingValues = null;
+            long version = -1;
+            try {
+                Bundle args = new Bundle();
+                args.putStringArray(CALL_METHOD_NAMES_KEY, missingNames);
+                if (!isSelf) {
+                    args.putInt(CALL_METHOD_USER_KEY, userId);
+                }
+                Bundle b = lazyGetProvider(cr).call(cr.getPackageName(), mCallGetMultipleCommand,
+                        null, args);
+                if (b != null) {
+                    missingValues = b.getStringArray(CALL_METHOD_VALUES_KEY);
+                    version = b.getLong(CALL_METHOD_GENERATION_KEY, -1);
+                }
+            } catch (RemoteException e) {
+                // Not supported by the remote side?  Fall back to single lookups.
+            }
+
+            if (missingValues == null || missingValues.length != missingCount) {
+                for (int i = 0; i < missingCount; i++) {
+                    values[missing[i]] = getStringForUser(cr, missingNames[i], userId);
+                }
+                return values;
+            }
+
+            // Values read at another version are still returned, they just don't fit the cache.
+            final boolean cache = generation != null && version == generation.mVersion;
+            for (int i = 0; i < missingCount; i++) {
+                values[missing[i]] = missingValues[i];
+                if (cache) {
+                    generation.mValues.put(missingNames[i], CacheEntry.forValue(missingValues[i]));
+                }
+            }
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "batch miss [" + mUri.getLastPathSegment() + "]: " + missingCount
+                        + " of " + names.length + " key(s)" + (cache ? "" : ", not cached"));
+            }
+            return values;
         }
 
         /**
-         * Gets a string value with the specified name from the name/value cache if possible. If
-         * not, it will use the content resolver and perform a query.
+         * Gets the cache entry with the specified name, which also holds the value parsed as
+         * each numeric type.  Looks the value up in the same way as
+         * {@link #getStringForUser}.
          * @param cr Content resolver to use if name/value cache does not contain the name or if
          *           the cache version is older than the current version.
          * @param name The name of the key to search for.
          * @param userId The user id of the cache to look in.
-         * @return The string value of the specified key.
+         * @return The entry of the specified key, never null.
          */
-        public String getStringForUser(ContentResolver cr, String name, final int userId) {
+        public CacheEntry getEntryForUser(ContentResolver cr, String name, final int userId) {
+            if (isImpossibleKey(name)) {
+                if (LOCAL_LOGV) Log.v(TAG, "undeclared key [" + mUri.getLastPathSegment()
+                        + "]: " + name);
+                return CacheEntry.NULL;
+            }
             final boolean isSelf = (userId == UserHandle.myUserId());
-            if (isSelf) {
+            Generation generation = null;
+            GenerationTracker tracker = isSelf ? lazyGetGenerationTracker(cr) : null;
+            if (tracker != null) {
                 if (LOCAL_LOGV) Log.d(TAG, "get setting for self");
-                long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
 
                 // Our own user's settings data uses a client-side cache
-                synchronized (this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
-                    }
+                generation = getGeneration(cr, tracker.getGeneration());
+                CacheEntry cached = generation.mValues.get(name);
+                if (cached != null) {
+                    // Could be CacheEntry.NULL, that's OK -- negative caching
+                    return cached;
+                }
+                if (generation.mComplete) {
+                    return CacheEntry.NULL;
+                }
 
-                    if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
+                // Then the snapshot, which answers without a round trip to the provider.
+                SnapshotReader reader = lazyGetSnapshotReader(cr);
+                if (reader != null) {
+                    cached = reader.lookup(name, generation.mVersion);
+                    if (cached != null) {
+                        generation.mValues.put(name, cached);
+                        return cached;
                     }
                 }
+            } else if (isSelf) {
+                if (LOCAL_LOGV) Log.v(TAG, "generation of " + mUri + " unavailable"
+                        + " so skipping cache");
             } else {
                 if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userId
                         + " by user " + UserHandle.myUserId() + " so skipping cache");
             }
             IContentProvider cp = lazyGetProvider(cr);
 
+            // On the first miss after an invalidation, load the whole table in one go rather
+            // than paying a round trip for each key.
+            if (generation != null && mCallListCommand != null) {
+                prefetch(cr, cp, generation);
+                CacheEntry cached = generation.mValues.get(name);
+                if (cached != null) {
+                    return cached;
+                }
+                if (generation.mComplete) {
+                    return CacheEntry.NULL;
+                }
+            }
+
+            if (generation != null) {
+                return fetchOnce(cr, cp, name, userId, generation);
+            }
+            return fetch(cr, cp, name, userId, generation);
+        }
+
+        /**
+         * Fetches a key of our own user from the provider, unless another thread is already
+         * doing so for the same generation, in which case its result is shared.  Threads missing
+         * the same key at once, such as right after the cache was invalidated, thus cost a
+         * single round trip.
+         */
+        private CacheEntry fetchOnce(ContentResolver cr, IContentProvider cp, String name,
+                int userId, Generation generation) {
+            PendingFetch fetch = new PendingFetch();
+            PendingFetch inFlight = generation.mPendingFetches.putIfAbsent(name, fetch);
+            if (inFlight != null) {
+                if (LOCAL_LOGV) Log.v(TAG, "waiting for fetch [" + mUri.getLastPathSegment()
+                        + "]: " + name);
+                return inFlight.await();
+            }
+            CacheEntry entry = CacheEntry.NULL;
+            try {
+                // A fetch may have completed between our miss and registering this one.
+                CacheEntry cached = generation.mValues.get(name);
+                entry = (cached != null) ? cached : fetch(cr, cp, name, userId, generation);
+                return entry;
+            } finally {
+                // Only removed once the result is cached, so a later miss finds one or the other.
+                generation.mPendingFetches.remove(name, fetch);
+                fetch.complete(entry);
+            }
+        }
+
+        /**
+         * Reads a key from the provider and, for our own user, caches it in the generation.
+         */
+        private CacheEntry fetch(ContentResolver cr, IContentProvider cp, String name,
+                int userId, Generation generation) {
+            final boolean isSelf = (userId == UserHandle.myUserId());
+
             // Try the fast path first, not using query().  If this
             // fails (alternate Settings provider that doesn't support
             // this interface?) then we fall back to the query/table
@@ -214,18 +1188,16 @@ public final class AllianceSettings {
                     }
                     Bundle b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
                     if (b != null) {
-                        String value = b.getPairValue();
+                        CacheEntry entry = CacheEntry.forValue(b.getPairValue());
                         // Don't update our cache for reads of other users' data
-                        if (isSelf) {
-                            synchronized (this) {
-                                mValues.put(name, value);
-                            }
+                        if (generation != null) {
+                            generation.mValues.put(name, entry);
                         } else {
                             if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userId
                                     + " by " + UserHandle.myUserId()
                                     + " so not updating cache");
                         }
-                        return value;
+                        return entry;
                     }
                     // If the response Bundle is null, we fall through
                     // to the query interface below.
@@ -241,26 +1213,177 @@ public final class AllianceSettings {
                         new String[]{name}, null, null);
                 if (c == null) {
                     Log.w(TAG, "Can't get key " + name + " from " + mUri);
-                    return null;
+                    return CacheEntry.NULL;
                 }
                 String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (this) {
-                    mValues.put(name, value);
+                CacheEntry entry = CacheEntry.forValue(value);
+                if (generation != null) {
+                    generation.mValues.put(name, entry);
                 }
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
                             name + " = " + (value == null ? "(null)" : value));
                 }
-                return value;
+                return entry;
             } catch (RemoteException e) {
                 Log.w(TAG, "Can't get key " + name + " from " + mUri, e);
-                return null;  // Return null, but don't cache it.
+                return CacheEntry.NULL;  // Return null, but don't cache it.
             } finally {
                 if (c != null) c.close();
             }
         }
     }
 
+    /**
+     * Declared keys of a settings table, with the valid values and the default of each. Every
+     * key gets an integer id, its index in declaration order, and names are looked up in an
+     * open-addressed table of their hashes built once when the schema is, so a name that is not
+     * declared is nearly always rejected without comparing strings.
+     *
+     * @hide
+     */
+    public static final class Schema {
+        public static final int UNKNOWN_KEY = -1;
+
+        // Indexed by key id.
+        private final String[] mNames;
+        private final System.Validator[] mValidators;
+        private final String[] mDefaults;
+
+        // Key id of each slot, or UNKNOWN_KEY, and the hash of its name. A power of two at
+        // least twice the number of keys, so probes stay short and always reach an empty slot.
+        private final int[] mSlots;
+        private final int[] mSlotHashes;
+        private final int mMask;
+
+        private Schema(Builder builder) {
+            final int count = builder.mNames.size();
+            mNames = builder.mNames.toArray(new String[count]);
+            mValidators = builder.mValidators.toArray(new System.Validator[count]);
+            mDefaults = builder.mDefaults.toArray(new String[count]);
+
+            int size = 1;
+            while (size < count * 2) {
+                size <<= 1;
+            }
+            mSlots = new int[size];
+            mSlotHashes = new int[size];
+            mMask = size - 1;
+            Arrays.fill(mSlots, UNKNOWN_KEY);
+            for (int id = 0; id < count; id++) {
+                final int hash = spread(mNames[id].hashCode());
+                int slot = hash & mMask;
+                while (mSlots[slot] != UNKNOWN_KEY) {
+                    if (mNames[mSlots[slot]].equals(mNames[id])) {
+                        throw new IllegalArgumentException("Duplicate setting: " + mNames[id]);
+                    }
+                    slot = (slot + 1) & mMask;
+                }
+                mSlots[slot] = id;
+                mSlotHashes[slot] = hash;
+            }
+        }
+
+        /**
+         * @return The id of the key, or {@link #UNKNOWN_KEY} if it is not declared.
+         */
+        public int getKeyId(String name) {
+            if (name == null) {
+                return UNKNOWN_KEY;
+            }
+            final int hash = spread(name.hashCode());
+            for (int slot = hash & mMask; ; slot = (slot + 1) & mMask) {
+                final int id = mSlots[slot];
+                if (id == UNKNOWN_KEY
+                        || (mSlotHashes[slot] == hash && mNames[id].equals(name))) {
+                    return id;
+                }
+            }
+        }
+
+        public boolean isKnownKey(String name) {
+            return getKeyId(name) != UNKNOWN_KEY;
+        }
+
+        public int size() {
+            return mNames.length;
+        }
+
+        public String getName(int keyId) {
+            return mNames[keyId];
+        }
+
+        /**
+         * @return The declared default of the key, or null if it has none.
+         */
+        public String getDefault(int keyId) {
+            return mDefaults[keyId];
+        }
+
+        public System.Validator getValidator(int keyId) {
+            return mValidators[keyId];
+        }
+
+        public boolean validate(int keyId, String value) {
+            return mValidators[keyId].validate(value);
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * Declares the keys of a schema, in the order of their ids.
+         */
+        public static final class Builder {
+            private final ArrayList<String> mNames = new ArrayList<String>();
+            private final ArrayList<System.Validator> mValidators =
+                    new ArrayList<System.Validator>();
+            private final ArrayList<String> mDefaults = new ArrayList<String>();
+
+            public Builder addString(String name, String defaultValue) {
+                return add(name, System.sAlwaysTrueValidator, defaultValue);
+            }
+
+            public Builder addDiscrete(String name, String[] values, String defaultValue) {
+                return add(name, new System.DiscreteValueValidator(values), defaultValue);
+            }
+
+            public Builder addBoolean(String name, String defaultValue) {
+                return add(name, System.sBooleanValidator, defaultValue);
+            }
+
+            public Builder addInteger(String name, int min, int max, String defaultValue) {
+                return add(name, new System.InclusiveIntegerRangeValidator(min, max), defaultValue);
+            }
+
+            public Builder addFloat(String name, float min, float max, String defaultValue) {
+                return add(name, new System.InclusiveFloatRangeValidator(min, max), defaultValue);
+            }
+
+            public Builder addList(String name, String[] validValues, String delimiter,
+                    boolean allowEmptyList, String defaultValue) {
+                return add(name, new System.DelimitedListValidator(validValues, delimiter,
+                        allowEmptyList), defaultValue);
+            }
+
+            public Builder addUri(String name, String defaultValue) {
+                return add(name, System.sUriValidator, defaultValue);
+            }
+
+            public Builder add(String name, System.Validator validator, String defaultValue) {
+                mNames.add(name);
+                mValidators.add(validator);
+                mDefaults.add(defaultValue);
+                return this;
+            }
+
+            public Schema build() {
+                return new Schema(this);
+            }
+        }
+    }
+
     /**
      * System settings, containing miscellaneous Alliance system preferences. This table holds simple
      * name/value pairs. There are convenience functions for accessing individual settings entries.
@@ -268,6 +1391,11 @@ public final class AllianceSettings {
     public static final class System extends Settings.NameValueTable {
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/system");
 
+        /**
+         * @deprecated Table generations are now published through shared memory and this
+         * property is no longer updated.
+         */
+        @Deprecated
         public static final String SYS_PROP_ALLIANCE_SETTING_VERSION = "sys.alliance_settings_system_version";
 
         /** @hide */
@@ -275,24 +1403,9 @@ public final class AllianceSettings {
             public boolean validate(String value);
         }
 
-        private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_ALLIANCE_SETTING_VERSION,
-                CONTENT_URI,
-                CALL_METHOD_GET_SYSTEM,
-                CALL_METHOD_PUT_SYSTEM);
-
         private static final Validator sBooleanValidator = new DiscreteValueValidator(new String[] {"0", "1"});
 
-        private static final Validator sNonNegativeIntegerValidator = new Validator() {
-            @Override
-            public boolean validate(String value) {
-                try {
-                    return Integer.parseInt(value) >= 0;
-                } catch (NumberFormatException e) {
-                    return false;
-                }
-            }
-        };
+        private static final Validator sNonNegativeIntegerValidator = new InclusiveIntegerRangeValidator(0, Integer.MAX_VALUE);
 
         private static final Validator sUriValidator = new Validator() {
             @Override
@@ -376,6 +1489,22 @@ public final class AllianceSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up several names in the database with a single request.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values in the same order, with null for names not present
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -392,6 +1521,23 @@ public final class AllianceSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database at once.  Either all of them are
+         * stored or, if any is rejected, none are.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @return true if the values were set, false on database errors
+         */
+        public static boolean putStrings(ContentResolver resolver, Map<String, String> values) {
+            return putStringsForUser(resolver, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -412,12 +1558,8 @@ public final class AllianceSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            return entry.hasInt() ? entry.getInt() : def;
         }
 
         /**
@@ -444,12 +1586,11 @@ public final class AllianceSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId) throws AllianceSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            if (!entry.hasInt()) {
                 throw new AllianceSettingNotFoundException(name);
             }
+            return entry.getInt();
         }
 
         /**
@@ -494,14 +1635,8 @@ public final class AllianceSettings {
 
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def, int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            return entry.hasLong() ? entry.getLong() : def;
         }
 
         /**
@@ -527,12 +1662,11 @@ public final class AllianceSettings {
 
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId) throws AllianceSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            if (!entry.hasLong()) {
                 throw new AllianceSettingNotFoundException(name);
             }
+            return entry.getLong();
         }
 
         /**
@@ -577,12 +1711,8 @@ public final class AllianceSettings {
 
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            return entry.hasFloat() ? entry.getFloat() : def;
         }
 
         /**
@@ -609,15 +1739,11 @@ public final class AllianceSettings {
 
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId) throws AllianceSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new AllianceSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            if (!entry.hasFloat()) {
                 throw new AllianceSettingNotFoundException(name);
             }
+            return entry.getFloat();
         }
 
         /**
@@ -667,12 +1793,34 @@ public final class AllianceSettings {
 
             @Override
             public boolean validate(String value) {
-                try {
-                    final int intValue = Integer.parseInt(value);
-                    return intValue >= mMin && intValue <= mMax;
-                } catch (NumberFormatException e) {
+                // Parsed by hand, to not throw and catch on every invalid value.
+                final int length = value == null ? 0 : value.length();
+                if (length == 0) {
                     return false;
                 }
+                int i = 0;
+                final boolean negative = value.charAt(0) == '-';
+                if (negative || value.charAt(0) == '+') {
+                    if (length == 1) {
+                        return false;
+                    }
+                    i++;
+                }
+                long result = 0;
+                for (; i < length; i++) {
+                    final int digit = Character.digit(value.charAt(i), 10);
+                    if (digit < 0) {
+                        return false;
+                    }
+                    result = result * 10 + digit;
+                    if (result > (long) Integer.MAX_VALUE + 1) {
+                        return false;
+                    }
+                }
+                if (negative) {
+                    result = -result;
+                }
+                return result >= mMin && result <= mMax;
             }
         }
 
@@ -687,6 +1835,17 @@ public final class AllianceSettings {
 
             @Override
             public boolean validate(String value) {
+                if (value == null) {
+                    return false;
+                }
+                if (isPlainDecimal(value, value.length())) {
+                    // Can not throw, so the common case does not pay for the try below.
+                    final float floatValue = Float.parseFloat(value);
+                    return floatValue >= mMin && floatValue <= mMax;
+                }
+                if (!mayBeSpecialForm(value)) {
+                    return false;
+                }
                 try {
                     final float floatValue = Float.parseFloat(value);
                     return floatValue >= mMin && floatValue <= mMax;
@@ -694,40 +1853,122 @@ public final class AllianceSettings {
                     return false;
                 }
             }
+
+            /**
+             * @return Whether the value is an optionally signed decimal with an optional
+             * exponent, such as "-1.5" or "2e3", in its first length chars.
+             */
+            private static boolean isPlainDecimal(String value, int length) {
+                int i = 0;
+                if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                    i++;
+                }
+                int digits = 0;
+                while (i < length && isAsciiDigit(value.charAt(i))) {
+                    i++;
+                    digits++;
+                }
+                if (i < length && value.charAt(i) == '.') {
+                    i++;
+                    while (i < length && isAsciiDigit(value.charAt(i))) {
+                        i++;
+                        digits++;
+                    }
+                }
+                if (digits == 0) {
+                    return false;
+                }
+                if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+                    i++;
+                    if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                        i++;
+                    }
+                    final int exponentStart = i;
+                    while (i < length && isAsciiDigit(value.charAt(i))) {
+                        i++;
+                    }
+                    if (i == exponentStart) {
+                        return false;
+                    }
+                }
+                return i == length;
+            }
+
+            /**
+             * @return Whether the value has the shape of one of the other forms Float accepts:
+             * surrounded by whitespace, a decimal with a type suffix, hex, Infinity or NaN.
+             * Only those are left to Float to parse, so malformed values are rejected without
+             * an exception.
+             */
+            private static boolean mayBeSpecialForm(String value) {
+                final int length = value.length();
+                if (length == 0) {
+                    return false;
+                }
+                // Float trims these before parsing.
+                if (value.charAt(0) <= ' ' || value.charAt(length - 1) <= ' ') {
+                    return true;
+                }
+                final char last = value.charAt(length - 1);
+                if ((last == 'f' || last == 'F' || last == 'd' || last == 'D')
+                        && isPlainDecimal(value, length - 1)) {
+                    return true;
+                }
+                final int start = value.charAt(0) == '-' || value.charAt(0) == '+' ? 1 : 0;
+                return value.startsWith("0x", start) || value.startsWith("0X", start)
+                        || value.startsWith("Infinity", start) || value.startsWith("NaN", start);
+            }
+
+            private static boolean isAsciiDigit(char c) {
+                return c >= '0' && c <= '9';
+            }
         }
 
         private static final class DelimitedListValidator implements Validator {
-            private final ArraySet<String> mValidValueSet;
+            private final String[] mValidValues;
             private final String mDelimiter;
             private final boolean mAllowEmptyList;
 
             public DelimitedListValidator(String[] validValues, String delimiter, boolean allowEmptyList) {
-                mValidValueSet = new ArraySet<String>(Arrays.asList(validValues));
+                if (TextUtils.isEmpty(delimiter)) {
+                    throw new IllegalArgumentException("Delimiter must not be empty");
+                }
+                mValidValues = validValues;
                 mDelimiter = delimiter;
                 mAllowEmptyList = allowEmptyList;
             }
 
             @Override
             public boolean validate(String value) {
-                ArraySet<String> values = new ArraySet<String>();
-                if (!TextUtils.isEmpty(value)) {
-                    final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                    for (String item : array) {
-                        if (TextUtils.isEmpty(item)) {
-                            continue;
+                // Scans the items in place rather than splitting, so nothing is allocated.
+                boolean hasItems = false;
+                if (value != null) {
+                    final int length = value.length();
+                    int start = 0;
+                    while (start <= length) {
+                        int end = value.indexOf(mDelimiter, start);
+                        if (end < 0) {
+                            end = length;
                         }
-                        values.add(item);
+                        if (end > start) {
+                            if (!isValidItem(value, start, end - start)) {
+                                return false;
+                            }
+                            hasItems = true;
+                        }
+                        start = end + mDelimiter.length();
                     }
                 }
-                if (values.size() > 0) {
-                    values.removeAll(mValidValueSet);
-                    // values.size() will be non-zero if it contains any values not in
-                    // mValidValueSet
-                    return values.size() == 0;
-                } else if (mAllowEmptyList) {
-                    return true;
-                }
+                return hasItems || mAllowEmptyList;
+            }
 
+            private boolean isValidItem(String value, int start, int length) {
+                for (String validValue : mValidValues) {
+                    if (validValue.length() == length
+                            && value.regionMatches(start, validValue, 0, length)) {
+                        return true;
+                    }
+                }
                 return false;
             }
         }
@@ -747,18 +1988,39 @@ public final class AllianceSettings {
         }
 
         /**
-         * Mapping of validators for all system settings.  This map is used to validate both valid
-         * keys as well as validating the values for those keys.
+         * Schema of all system settings.  It is used to validate both valid keys as well as
+         * validating the values for those keys.
+         *
+         * Note: Make sure if you add a new System setting you declare it in this schema.
          *
-         * Note: Make sure if you add a new System setting you create a Validator for it and add
-         *       it to this map.
+         * @hide
+         */
+        public static final Schema SCHEMA = new Schema.Builder()
+                // empty
+                .build();
+
+        /**
+         * Mapping of validators for all system settings, derived from {@link #SCHEMA}.
          *
          * @hide
          */
         public static final Map<String, Validator> VALIDATORS = new ArrayMap<String, Validator>();
         static {
-            // empty
+            for (int i = 0; i < SCHEMA.size(); i++) {
+                VALIDATORS.put(SCHEMA.getName(i), SCHEMA.getValidator(i));
+            }
         };
+
+        // SCHEMA does not declare every key the table holds yet, such as those migrated from
+        // the platform settings, so undeclared keys are still looked up.
+        private static final NameValueCache sNameValueCache = new NameValueCache(
+                CONTENT_URI,
+                CALL_METHOD_GET_SYSTEM,
+                CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_LIST_SYSTEM,
+                CALL_METHOD_GET_MULTIPLE_SYSTEM,
+                CALL_METHOD_PUT_MULTIPLE_SYSTEM,
+                null);
     }
 
     /**
@@ -769,13 +2031,21 @@ public final class AllianceSettings {
     public static final class Secure extends Settings.NameValueTable {
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/secure");
 
+        /**
+         * @deprecated Table generations are now published through shared memory and this
+         * property is no longer updated.
+         */
+        @Deprecated
         public static final String SYS_PROP_ALLIANCE_SETTING_VERSION = "sys.alliance_settings_secure_version";
 
         private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_ALLIANCE_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
-                CALL_METHOD_PUT_SECURE);
+                CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_LIST_SECURE,
+                CALL_METHOD_GET_MULTIPLE_SECURE,
+                CALL_METHOD_PUT_MULTIPLE_SECURE,
+                null);
 
         /**
          * Put a delimited list as a string
@@ -839,6 +2109,22 @@ public final class AllianceSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up several names in the database with a single request.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values in the same order, with null for names not present
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -856,6 +2142,23 @@ public final class AllianceSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database at once.  Either all of them are
+         * stored or, if any is rejected, none are.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @return true if the values were set, false on database errors
+         */
+        public static boolean putStrings(ContentResolver resolver, Map<String, String> values) {
+            return putStringsForUser(resolver, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -876,12 +2179,8 @@ public final class AllianceSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            return entry.hasInt() ? entry.getInt() : def;
         }
 
         /**
@@ -908,12 +2207,11 @@ public final class AllianceSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId) throws AllianceSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            if (!entry.hasInt()) {
                 throw new AllianceSettingNotFoundException(name);
             }
+            return entry.getInt();
         }
 
         /**
@@ -958,14 +2256,8 @@ public final class AllianceSettings {
 
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def, int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            return entry.hasLong() ? entry.getLong() : def;
         }
 
         /**
@@ -991,12 +2283,11 @@ public final class AllianceSettings {
 
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId) throws AllianceSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            if (!entry.hasLong()) {
                 throw new AllianceSettingNotFoundException(name);
             }
+            return entry.getLong();
         }
 
         /**
@@ -1041,12 +2332,8 @@ public final class AllianceSettings {
 
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            return entry.hasFloat() ? entry.getFloat() : def;
         }
 
         /**
@@ -1073,15 +2360,11 @@ public final class AllianceSettings {
 
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId) throws AllianceSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new AllianceSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            if (!entry.hasFloat()) {
                 throw new AllianceSettingNotFoundException(name);
             }
+            return entry.getFloat();
         }
 
         /**
@@ -1119,6 +2402,16 @@ public final class AllianceSettings {
         public static boolean isLegacySetting(String key) {
             return ArrayUtils.contains(LEGACY_SECURE_SETTINGS, key);
         }
+
+        /**
+         * Schema of the secure settings.  Keys that are declared have their values validated;
+         * keys that are not are still accepted, as this table had no schema before.
+         *
+         * @hide
+         */
+        public static final Schema SCHEMA = new Schema.Builder()
+                // empty
+                .build();
     }
 
     /**
@@ -1129,13 +2422,21 @@ public final class AllianceSettings {
     public static final class Global extends Settings.NameValueTable {
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/global");
 
+        /**
+         * @deprecated Table generations are now published through shared memory and this
+         * property is no longer updated.
+         */
+        @Deprecated
         public static final String SYS_PROP_ALLIANCE_SETTING_VERSION = "sys.alliance_settings_global_version";
 
         private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_ALLIANCE_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_GLOBAL,
-                CALL_METHOD_PUT_GLOBAL);
+                CALL_METHOD_PUT_GLOBAL,
+                CALL_METHOD_LIST_GLOBAL,
+                CALL_METHOD_GET_MULTIPLE_GLOBAL,
+                CALL_METHOD_PUT_MULTIPLE_GLOBAL,
+                null);
 
         /**
          * Put a delimited list as a string
@@ -1198,6 +2499,22 @@ public final class AllianceSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up several names in the database with a single request.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values in the same order, with null for names not present
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -1214,6 +2531,23 @@ public final class AllianceSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database at once.  Either all of them are
+         * stored or, if any is rejected, none are.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @return true if the values were set, false on database errors
+         */
+        public static boolean putStrings(ContentResolver resolver, Map<String, String> values) {
+            return putStringsForUser(resolver, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -1234,12 +2568,8 @@ public final class AllianceSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            return entry.hasInt() ? entry.getInt() : def;
         }
 
         /**
@@ -1266,12 +2596,11 @@ public final class AllianceSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId) throws AllianceSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            if (!entry.hasInt()) {
                 throw new AllianceSettingNotFoundException(name);
             }
+            return entry.getInt();
         }
 
         /**
@@ -1316,14 +2645,8 @@ public final class AllianceSettings {
 
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def, int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            return entry.hasLong() ? entry.getLong() : def;
         }
 
         /**
@@ -1349,12 +2672,11 @@ public final class AllianceSettings {
 
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId) throws AllianceSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            if (!entry.hasLong()) {
                 throw new AllianceSettingNotFoundException(name);
             }
+            return entry.getLong();
         }
 
         /**
@@ -1399,12 +2721,8 @@ public final class AllianceSettings {
 
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            return entry.hasFloat() ? entry.getFloat() : def;
         }
 
         /**
@@ -1431,15 +2749,11 @@ public final class AllianceSettings {
 
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId) throws AllianceSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new AllianceSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            CacheEntry entry = sNameValueCache.getEntryForUser(cr, name, userId);
+            if (!entry.hasFloat()) {
                 throw new AllianceSettingNotFoundException(name);
             }
+            return entry.getFloat();
         }
 
         /**
@@ -1477,5 +2791,15 @@ public final class AllianceSettings {
         public static boolean isLegacySetting(String key) {
             return ArrayUtils.contains(LEGACY_GLOBAL_SETTINGS, key);
         }
+
+        /**
+         * Schema of the global settings.  Keys that are declared have their values validated;
+         * keys that are not are still accepted, as this table had no schema before.
+         *
+         * @hide
+         */
+        public static final Schema SCHEMA = new Schema.Builder()
+                // empty
+                .build();
     }
 }
\ No newline at end of file
@@ -0,0 +1,47 @@
+# Copyright (C) 2016 AllianceROM, ~Morningstar
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+# The settings provider runs in the system process, which can not be instrumented, so its
+# sources and resources are built into this package and tested here instead.
+provider_dir := ../packages/AllianceSettingsProvider
+
+LOCAL_SRC_FILES := \
+	$(call all-java-files-under, src) \
+	$(call all-java-files-under, $(provider_dir)/src)
+
+LOCAL_RESOURCE_DIR := \
+	$(LOCAL_PATH)/res \
+	$(LOCAL_PATH)/$(provider_dir)/res
+
+LOCAL_AAPT_FLAGS := \
+	--auto-add-overlay \
+	--custom-package com.alliance-rom.alliancesettings
+
+LOCAL_JAVA_LIBRARIES := \
+	android.test.runner \
+	com.alliance-rom.platform
+
+LOCAL_STATIC_JAVA_LIBRARIES := \
+	com.alliance-rom.platform.sdk
+
+LOCAL_PACKAGE_NAME := AlliancePlatformTests
+LOCAL_CERTIFICATE := platform
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alliance-rom.providers;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.Settings;
+import android.test.mock.MockContentResolver;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for AllianceSettingsProvider in the client tests. It serves the secure table from a
+ * map, publishes a generation file the tests can bump, and counts the reads it answers.
+ *
+ * AllianceSettings holds on to the first provider it is handed for the life of the process, so
+ * every test shares the one instance from {@link #getInstance} and calls {@link #reset} first.
+ * Snapshots, table listings and change lists are not offered, so every miss costs a GET call.
+ */
+public class FakeSettingsProvider extends ContentProvider {
+
+    private static final String FILE_NAME = "fake_alliancesettings_generation";
+    private static final int SLOT_SIZE = 8;
+    private static final int SECURE_INDEX = 1;
+    private static final long GATE_TIMEOUT_SECONDS = 10;
+
+    private static FakeSettingsProvider sInstance;
+
+    private final ConcurrentHashMap<String, String> mValues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> mGetCounts = new ConcurrentHashMap<>();
+
+    private File mGenerationFile;
+    private MappedByteBuffer mGeneration;
+
+    // When set, GET calls count down mEntered and then wait for mGate to open.
+    private volatile CountDownLatch mGate;
+    private volatile CountDownLatch mEntered;
+
+    public static synchronized FakeSettingsProvider getInstance(Context context)
+            throws IOException {
+        if (sInstance == null) {
+            FakeSettingsProvider provider = new FakeSettingsProvider();
+            provider.attachInfo(context, null);
+            provider.mapGeneration(new File(context.getCacheDir(), FILE_NAME));
+            sInstance = provider;
+        }
+        return sInstance;
+    }
+
+    public MockContentResolver newResolver(Context context) {
+        MockContentResolver resolver = new MockContentResolver(context);
+        resolver.addProvider(AllianceSettings.AUTHORITY, this);
+        return resolver;
+    }
+
+    /**
+     * Clears the table and the counts and moves to a new generation, so nothing a previous test
+     * cached is used.
+     */
+    public void reset() {
+        mValues.clear();
+        mGetCounts.clear();
+        mGate = null;
+        mEntered = null;
+        bumpGeneration();
+    }
+
+    public void putValue(String name, String value) {
+        mValues.put(name, value);
+    }
+
+    public void bumpGeneration() {
+        final int offset = SECURE_INDEX * SLOT_SIZE;
+        mGeneration.putLong(offset, mGeneration.getLong(offset) + 1);
+    }
+
+    public int getGetCount(String name) {
+        AtomicInteger count = mGetCounts.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Holds every GET call until {@link #openGate} is called.
+     * @param expectedCalls How many calls {@link #awaitEntered} waits for.
+     */
+    public void closeGate(int expectedCalls) {
+        mEntered = new CountDownLatch(expectedCalls);
+        mGate = new CountDownLatch(1);
+    }
+
+    public boolean awaitEntered() throws InterruptedException {
+        return mEntered.await(GATE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void openGate() {
+        mGate.countDown();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (AllianceSettings.CALL_METHOD_GET_GENERATION.equals(method)) {
+            try {
+                Bundle bundle = new Bundle();
+                bundle.putParcelable(AllianceSettings.CALL_METHOD_GENERATION_FD_KEY,
+                        ParcelFileDescriptor.open(mGenerationFile,
+                                ParcelFileDescriptor.MODE_READ_ONLY));
+                bundle.putInt(AllianceSettings.CALL_METHOD_GENERATION_INDEX_KEY, SECURE_INDEX);
+                return bundle;
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        } else if (AllianceSettings.CALL_METHOD_GET_SECURE.equals(method)) {
+            AtomicInteger count = mGetCounts.get(arg);
+            if (count == null) {
+                mGetCounts.putIfAbsent(arg, new AtomicInteger());
+                count = mGetCounts.get(arg);
+            }
+            count.incrementAndGet();
+            awaitGate();
+            Bundle bundle = new Bundle();
+            bundle.putString(Settings.NameValueTable.VALUE, mValues.get(arg));
+            return bundle;
+        }
+        return null;
+    }
+
+    private void awaitGate() {
+        CountDownLatch gate = mGate;
+        if (gate == null) {
+            return;
+        }
+        mEntered.countDown();
+        try {
+            gate.await(GATE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void mapGeneration(File file) throws IOException {
+        mGenerationFile = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            mGeneration = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    SLOT_SIZE * 3);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
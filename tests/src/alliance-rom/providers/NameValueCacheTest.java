@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alliance-rom.providers;
+
+import android.content.ContentResolver;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+/**
+ * Tests the cached read path of AllianceSettings against {@link FakeSettingsProvider}.
+ */
+public class NameValueCacheTest extends AndroidTestCase {
+
+    private static final String TAG = "NameValueCacheTest";
+
+    private static final int ITERATIONS = 1000000;
+
+    private FakeSettingsProvider mProvider;
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = FakeSettingsProvider.getInstance(getContext());
+        mProvider.reset();
+        mResolver = mProvider.newResolver(getContext());
+    }
+
+    @SmallTest
+    public void testRepeatedReadsAreCached() {
+        mProvider.putValue("cache_string", "value");
+
+        assertEquals("value", AllianceSettings.Secure.getString(mResolver, "cache_string"));
+        assertEquals("value", AllianceSettings.Secure.getString(mResolver, "cache_string"));
+        assertEquals(1, mProvider.getGetCount("cache_string"));
+    }
+
+    @SmallTest
+    public void testMissingKeysAreCachedAsNull() {
+        assertNull(AllianceSettings.Secure.getString(mResolver, "cache_missing"));
+        assertNull(AllianceSettings.Secure.getString(mResolver, "cache_missing"));
+        assertEquals(1, mProvider.getGetCount("cache_missing"));
+    }
+
+    @SmallTest
+    public void testTypedReadsShareTheCachedEntry() {
+        mProvider.putValue("cache_number", "42");
+
+        assertEquals(42, AllianceSettings.Secure.getInt(mResolver, "cache_number", 0));
+        assertEquals(42L, AllianceSettings.Secure.getLong(mResolver, "cache_number", 0L));
+        assertEquals(42f, AllianceSettings.Secure.getFloat(mResolver, "cache_number", 0f));
+        assertEquals(42, AllianceSettings.Secure.getInt(mResolver, "cache_number", 0));
+        assertEquals(1, mProvider.getGetCount("cache_number"));
+    }
+
+    @SmallTest
+    public void testInvalidNumbersFallBackToDefault() {
+        mProvider.putValue("cache_invalid", "not a number");
+
+        assertEquals(7, AllianceSettings.Secure.getInt(mResolver, "cache_invalid", 7));
+        assertEquals(7, AllianceSettings.Secure.getInt(mResolver, "cache_invalid", 7));
+        assertEquals(7L, AllianceSettings.Secure.getLong(mResolver, "cache_invalid", 7L));
+        assertEquals(1, mProvider.getGetCount("cache_invalid"));
+    }
+
+    @SmallTest
+    public void testGenerationBumpRefetches() {
+        mProvider.putValue("cache_bumped", "1");
+        assertEquals(1, AllianceSettings.Secure.getInt(mResolver, "cache_bumped", 0));
+
+        mProvider.putValue("cache_bumped", "2");
+        // Still cached until the generation moves.
+        assertEquals(1, AllianceSettings.Secure.getInt(mResolver, "cache_bumped", 0));
+
+        mProvider.bumpGeneration();
+        assertEquals(2, AllianceSettings.Secure.getInt(mResolver, "cache_bumped", 0));
+        assertEquals(2, mProvider.getGetCount("cache_bumped"));
+    }
+
+    /**
+     * Logs the time and the allocations of a cached getInt, next to parsing the cached string
+     * on every call as the cache used to.
+     */
+    @LargeTest
+    public void testBenchmarkCachedGetInt() {
+        mProvider.putValue("cache_benchmark", "12345");
+        final String value = AllianceSettings.Secure.getString(mResolver, "cache_benchmark");
+        // Warm up.
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            AllianceSettings.Secure.getInt(mResolver, "cache_benchmark", 0);
+            Integer.parseInt(value);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            AllianceSettings.Secure.getInt(mResolver, "cache_benchmark", 0);
+        }
+        final long cachedNs = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+        final int cachedAllocations = Debug.getThreadAllocCount();
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Integer.parseInt(value);
+        }
+        final long parseNs = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "getInt: " + cachedNs / ITERATIONS + "ns/op, "
+                + (float) cachedAllocations / ITERATIONS + " allocations/op; parseInt alone: "
+                + parseNs / ITERATIONS + "ns/op");
+        assertEquals(1, mProvider.getGetCount("cache_benchmark"));
+    }
+}
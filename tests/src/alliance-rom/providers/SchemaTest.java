@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alliance-rom.providers;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests the key lookup of {@link AllianceSettings.Schema}.
+ */
+@SmallTest
+public class SchemaTest extends AndroidTestCase {
+
+    private static final int MANY_KEYS = 1000;
+
+    public void testIdsFollowDeclarationOrder() {
+        AllianceSettings.Schema schema = new AllianceSettings.Schema.Builder()
+                .addString("first", "a")
+                .addBoolean("second", "1")
+                .addInteger("third", 0, 10, null)
+                .build();
+
+        assertEquals(3, schema.size());
+        assertEquals(0, schema.getKeyId("first"));
+        assertEquals(1, schema.getKeyId("second"));
+        assertEquals(2, schema.getKeyId("third"));
+        assertEquals("second", schema.getName(1));
+        assertEquals("1", schema.getDefault(1));
+        assertNull(schema.getDefault(2));
+    }
+
+    public void testUnknownKeys() {
+        AllianceSettings.Schema schema = new AllianceSettings.Schema.Builder()
+                .addString("known", null)
+                .build();
+
+        assertTrue(schema.isKnownKey("known"));
+        assertFalse(schema.isKnownKey("unknown"));
+        assertFalse(schema.isKnownKey("Known"));
+        assertFalse(schema.isKnownKey(""));
+        assertEquals(AllianceSettings.Schema.UNKNOWN_KEY, schema.getKeyId(null));
+    }
+
+    public void testEmptySchema() {
+        AllianceSettings.Schema schema = new AllianceSettings.Schema.Builder().build();
+
+        assertEquals(0, schema.size());
+        assertFalse(schema.isKnownKey("anything"));
+    }
+
+    public void testManyKeys() {
+        AllianceSettings.Schema.Builder builder = new AllianceSettings.Schema.Builder();
+        for (int i = 0; i < MANY_KEYS; i++) {
+            builder.addString("key_" + i, null);
+        }
+        AllianceSettings.Schema schema = builder.build();
+
+        for (int i = 0; i < MANY_KEYS; i++) {
+            assertEquals(i, schema.getKeyId("key_" + i));
+        }
+        for (int i = MANY_KEYS; i < MANY_KEYS * 2; i++) {
+            assertFalse(schema.isKnownKey("key_" + i));
+        }
+    }
+
+    public void testDuplicateKeysAreRejected() {
+        AllianceSettings.Schema.Builder builder = new AllianceSettings.Schema.Builder()
+                .addString("key", null)
+                .addBoolean("key", null);
+        try {
+            builder.build();
+            fail("Duplicate key was accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testValidation() {
+        AllianceSettings.Schema schema = new AllianceSettings.Schema.Builder()
+                .addInteger("integer", 0, 10, null)
+                .build();
+        final int keyId = schema.getKeyId("integer");
+
+        assertTrue(schema.validate(keyId, "5"));
+        assertFalse(schema.validate(keyId, "11"));
+    }
+
+    public void testSystemValidatorsMatchSchema() {
+        AllianceSettings.Schema schema = AllianceSettings.System.SCHEMA;
+        assertEquals(schema.size(), AllianceSettings.System.VALIDATORS.size());
+        for (int i = 0; i < schema.size(); i++) {
+            assertSame(schema.getValidator(i),
+                    AllianceSettings.System.VALIDATORS.get(schema.getName(i)));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alliance-rom.providers;
+
+import android.content.ContentResolver;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that concurrent misses of the same key share a single call to the provider.
+ */
+@LargeTest
+public class SingleFlightTest extends AndroidTestCase {
+
+    private static final String KEY = "single_flight";
+    private static final int THREADS = 10;
+    private static final int GENERATIONS = 50;
+    // Long enough for the readers that started to reach the miss before the fetch returns.
+    private static final long SETTLE_MS = 20;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private FakeSettingsProvider mProvider;
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = FakeSettingsProvider.getInstance(getContext());
+        mProvider.reset();
+        mResolver = mProvider.newResolver(getContext());
+    }
+
+    public void testOneCallPerKeyPerGeneration() throws Exception {
+        for (int generation = 1; generation <= GENERATIONS; generation++) {
+            final String expected = "value" + generation;
+            mProvider.putValue(KEY, expected);
+            mProvider.bumpGeneration();
+            mProvider.closeGate(1);
+
+            final CountDownLatch started = new CountDownLatch(THREADS);
+            final String[] results = new String[THREADS];
+            Thread[] readers = new Thread[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                final int index = i;
+                readers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        results[index] = AllianceSettings.Secure.getString(mResolver, KEY);
+                    }
+                });
+                readers[i].start();
+            }
+
+            assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertTrue("No reader reached the provider", mProvider.awaitEntered());
+            Thread.sleep(SETTLE_MS);
+            mProvider.openGate();
+            for (Thread reader : readers) {
+                reader.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+                assertFalse("Reader did not finish", reader.isAlive());
+            }
+
+            for (String result : results) {
+                assertEquals(expected, result);
+            }
+            assertEquals("Calls after generation " + generation, generation,
+                    mProvider.getGetCount(KEY));
+        }
+    }
+
+    public void testDistinctKeysAreFetchedSeparately() throws Exception {
+        mProvider.putValue("first", "1");
+        mProvider.putValue("second", "2");
+        mProvider.closeGate(2);
+
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AllianceSettings.Secure.getString(mResolver, "first");
+            }
+        });
+        Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AllianceSettings.Secure.getString(mResolver, "second");
+            }
+        });
+        first.start();
+        second.start();
+
+        // Both calls are in flight at once, so one key's miss does not wait on the other's.
+        assertTrue(mProvider.awaitEntered());
+        mProvider.openGate();
+        first.join();
+        second.join();
+        assertEquals(1, mProvider.getGetCount("first"));
+        assertEquals(1, mProvider.getGetCount("second"));
+    }
+}
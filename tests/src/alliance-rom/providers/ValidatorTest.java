@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alliance-rom.providers;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+/**
+ * Tests the validators of the system table, built through {@link AllianceSettings.Schema}, and
+ * measures what a validation costs.
+ */
+public class ValidatorTest extends AndroidTestCase {
+
+    private static final String TAG = "ValidatorTest";
+
+    private static final int ITERATIONS = 1000000;
+
+    private static final AllianceSettings.Schema SCHEMA = new AllianceSettings.Schema.Builder()
+            .addBoolean("boolean", null)
+            .addDiscrete("discrete", new String[] { "one", "two", "three" }, null)
+            .addInteger("integer", -10, 10, null)
+            .addFloat("float", 0f, 10f, null)
+            .addList("list", new String[] { "a", "b", "c" }, "|", false, null)
+            .addUri("uri", null)
+            .build();
+
+    private static boolean validate(String name, String value) {
+        return SCHEMA.validate(SCHEMA.getKeyId(name), value);
+    }
+
+    @SmallTest
+    public void testBoolean() {
+        assertTrue(validate("boolean", "0"));
+        assertTrue(validate("boolean", "1"));
+        assertFalse(validate("boolean", "2"));
+        assertFalse(validate("boolean", null));
+    }
+
+    @SmallTest
+    public void testDiscrete() {
+        assertTrue(validate("discrete", "two"));
+        assertFalse(validate("discrete", "four"));
+        assertFalse(validate("discrete", null));
+    }
+
+    @SmallTest
+    public void testInteger() {
+        assertTrue(validate("integer", "-10"));
+        assertTrue(validate("integer", "10"));
+        assertFalse(validate("integer", "11"));
+        assertFalse(validate("integer", "99999999999"));
+        assertFalse(validate("integer", "1.0"));
+        assertFalse(validate("integer", ""));
+        assertFalse(validate("integer", "-"));
+        assertFalse(validate("integer", null));
+    }
+
+    @SmallTest
+    public void testFloatPlainDecimals() {
+        assertTrue(validate("float", "0"));
+        assertTrue(validate("float", "2.5"));
+        assertTrue(validate("float", ".5"));
+        assertTrue(validate("float", "5."));
+        assertTrue(validate("float", "1e1"));
+        assertFalse(validate("float", "-0.5"));
+        assertFalse(validate("float", "1e2"));
+    }
+
+    @SmallTest
+    public void testFloatSpecialForms() {
+        // Forms Float.parseFloat accepts, which were valid before and must stay so.
+        assertTrue(validate("float", " 2.5 "));
+        assertTrue(validate("float", "2.5f"));
+        assertTrue(validate("float", "2.5D"));
+        assertTrue(validate("float", "0x1p1"));
+        assertTrue(validate("float", "+0x1p1"));
+        assertFalse(validate("float", "Infinity"));
+        assertFalse(validate("float", "NaN"));
+    }
+
+    @SmallTest
+    public void testFloatMalformed() {
+        assertFalse(validate("float", "abc"));
+        assertFalse(validate("float", ""));
+        assertFalse(validate("float", "1.2.3"));
+        assertFalse(validate("float", "."));
+        assertFalse(validate("float", "1e"));
+        assertFalse(validate("float", "f"));
+        assertFalse(validate("float", "0xg"));
+        assertFalse(validate("float", null));
+    }
+
+    @SmallTest
+    public void testList() {
+        assertTrue(validate("list", "a"));
+        assertTrue(validate("list", "a|c"));
+        assertFalse(validate("list", "a|d"));
+        assertFalse(validate("list", ""));
+        assertFalse(validate("list", null));
+    }
+
+    @SmallTest
+    public void testUri() {
+        assertTrue(validate("uri", "content://settings/system/ringtone"));
+        assertTrue(validate("uri", null));
+    }
+
+    /**
+     * Logs the time and the allocations of a validation, for valid and invalid input to each
+     * type of validator.
+     */
+    @LargeTest
+    public void testBenchmark() {
+        benchmark("boolean", "1");
+        benchmark("discrete", "three");
+        benchmark("integer", "-7");
+        benchmark("integer", "abc");
+        benchmark("float", "2.5");
+        benchmark("float", "abc");
+        benchmark("float", "1.2.3");
+        benchmark("list", "a|b|c");
+        benchmark("list", "a|b|d");
+        benchmark("uri", "content://settings/system/ringtone");
+    }
+
+    private static void benchmark(String name, String value) {
+        final int keyId = SCHEMA.getKeyId(name);
+        final boolean expected = SCHEMA.validate(keyId, value);
+        // Warm up.
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            SCHEMA.validate(keyId, value);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (SCHEMA.validate(keyId, value) != expected) {
+                fail(name + " validated " + value + " differently");
+            }
+        }
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+
+        Log.i(TAG, name + " \"" + value + "\" valid=" + expected + ": "
+                + elapsed / ITERATIONS + "ns/op, "
+                + (float) Debug.getThreadAllocCount() / ITERATIONS + " allocations/op");
+    }
+}
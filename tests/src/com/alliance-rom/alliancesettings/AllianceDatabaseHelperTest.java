@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Tests the write-ahead logging mode of {@link AllianceDatabaseHelper} and its checkpoints.
+ */
+public class AllianceDatabaseHelperTest extends AndroidTestCase {
+
+    private static final String TAG = "AllianceDatabaseHelperTest";
+
+    private static final String TABLE = AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM;
+    private static final String QUERY_SQL = "SELECT value FROM " + TABLE + " WHERE name=?;";
+    private static final String CHECKPOINT_SQL = "PRAGMA wal_checkpoint(PASSIVE);";
+
+    private static final int ROWS = 100;
+    private static final int READS = 2000;
+    private static final int ROWS_PER_WRITE = 50;
+
+    private Context mWalContext;
+    private Context mRollbackContext;
+    private AllianceDatabaseHelper mWalHelper;
+    private AllianceDatabaseHelper mRollbackHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWalContext = new RenamingDelegatingContext(getContext(), "test_wal.");
+        mRollbackContext = new RenamingDelegatingContext(getContext(), "test_rollback.");
+        mWalHelper = new AllianceDatabaseHelper(mWalContext, UserHandle.USER_OWNER);
+        mRollbackHelper = new AllianceDatabaseHelper(mRollbackContext, UserHandle.USER_OWNER);
+        mRollbackHelper.setWriteAheadLoggingEnabled(false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWalHelper.close();
+        mRollbackHelper.close();
+        mWalContext.deleteDatabase(mWalHelper.getDatabaseName());
+        mRollbackContext.deleteDatabase(mRollbackHelper.getDatabaseName());
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testWriteAheadLoggingFollowsConfig() {
+        final boolean useWal = getContext().getResources().getBoolean(
+                R.bool.config_useWriteAheadLogging);
+        assertEquals(useWal, mWalHelper.getWritableDatabase().isWriteAheadLoggingEnabled());
+        assertFalse(mRollbackHelper.getWritableDatabase().isWriteAheadLoggingEnabled());
+    }
+
+    @MediumTest
+    public void testWritesRequestCheckpoint() {
+        if (!mWalHelper.getWritableDatabase().isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        assertFalse(mWalHelper.needsCheckpoint());
+
+        mWalHelper.upsert(TABLE, "key", "value");
+        assertTrue(mWalHelper.needsCheckpoint());
+
+        mWalHelper.checkpoint();
+        assertFalse(mWalHelper.needsCheckpoint());
+    }
+
+    @MediumTest
+    public void testCheckpointCopiesWholeLog() {
+        SQLiteDatabase db = mWalHelper.getWritableDatabase();
+        if (!db.isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        writeRows(mWalHelper, "before");
+        mWalHelper.checkpoint();
+
+        // busy, log frames, checkpointed frames: nothing may be left behind in the log.
+        Cursor cursor = db.rawQuery(CHECKPOINT_SQL, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(0, cursor.getInt(0));
+            assertEquals(cursor.getInt(1), cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+        assertEquals("before", readValue(db, "key0"));
+    }
+
+    @MediumTest
+    public void testCheckpointWithoutWalIsNoOp() {
+        mRollbackHelper.getWritableDatabase();
+        mRollbackHelper.upsert(TABLE, "key", "value");
+        assertFalse(mRollbackHelper.needsCheckpoint());
+        mRollbackHelper.checkpoint();
+        assertEquals("value", readValue(mRollbackHelper.getReadableDatabase(), "key"));
+    }
+
+    /**
+     * Measures the 99th percentile latency of reads made while another thread writes, with and
+     * without the write-ahead log. Readers should not queue behind the writer in WAL mode, but
+     * the timings depend too much on the device to be asserted on.
+     */
+    @LargeTest
+    public void testReadLatencyUnderConcurrentWrites() throws Exception {
+        if (!mWalHelper.getWritableDatabase().isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        final long walP99 = measureReadP99(mWalHelper);
+        final long rollbackP99 = measureReadP99(mRollbackHelper);
+        Log.i(TAG, "Read p99 under concurrent writes: wal=" + walP99 / 1000 + "us, rollback="
+                + rollbackP99 / 1000 + "us");
+    }
+
+    private long measureReadP99(final AllianceDatabaseHelper helper) throws Exception {
+        writeRows(helper, "initial");
+        final SQLiteDatabase db = helper.getReadableDatabase();
+
+        final boolean[] stop = new boolean[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int round = 0;
+                while (true) {
+                    synchronized (stop) {
+                        if (stop[0]) {
+                            return;
+                        }
+                    }
+                    writeRows(helper, Integer.toString(round++));
+                }
+            }
+        }, TAG);
+        writer.start();
+
+        long[] latencies = new long[READS];
+        try {
+            for (int i = 0; i < READS; i++) {
+                final long start = System.nanoTime();
+                readValue(db, "key" + (i % ROWS));
+                latencies[i] = System.nanoTime() - start;
+            }
+        } finally {
+            synchronized (stop) {
+                stop[0] = true;
+            }
+            writer.join();
+        }
+        Arrays.sort(latencies);
+        return latencies[READS * 99 / 100];
+    }
+
+    private static void writeRows(AllianceDatabaseHelper helper, String value) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        for (int i = 0; i < ROWS; i += ROWS_PER_WRITE) {
+            db.beginTransaction();
+            try {
+                for (int j = i; j < i + ROWS_PER_WRITE; j++) {
+                    helper.upsert(TABLE, "key" + j, value);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static String readValue(SQLiteDatabase db, String name) {
+        Cursor cursor = db.rawQuery(QUERY_SQL, new String[] { name });
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests {@link BinaryLogSettingsStorage} and compares it with {@link SqliteSettingsStorage}.
+ */
+public class BinaryLogSettingsStorageTest extends AndroidTestCase {
+
+    private static final String TAG = "BinaryLogSettingsStorageTest";
+
+    private static final String TABLE = AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM;
+
+    private static final int BENCHMARK_ROWS = 200;
+    private static final int BENCHMARK_WRITES = 100;
+    private static final int BENCHMARK_LOADS = 20;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), TAG);
+        deleteDirectory();
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testWritesSurviveReload() {
+        BinaryLogSettingsStorage storage = newStorage();
+        storage.load(new ArrayMap<String, String>());
+        storage.write(rows("a", "1", "b", null), new ArraySet<String>());
+        storage.write(rows("a", "2"), removals("b"));
+
+        ArrayMap<String, String> loaded = load();
+        assertEquals(1, loaded.size());
+        assertEquals("2", loaded.get("a"));
+    }
+
+    @MediumTest
+    public void testCompactionKeepsRows() {
+        BinaryLogSettingsStorage storage = newStorage();
+        storage.load(new ArrayMap<String, String>());
+        final String value = new String(new char[1024]).replace('\0', 'x');
+        final int count = BinaryLogSettingsStorage.COMPACT_LOG_BYTES / 1024 + 2;
+        for (int i = 0; i < count; i++) {
+            storage.write(rows("key" + i, value), new ArraySet<String>());
+        }
+        assertTrue(getLogFile().length() < BinaryLogSettingsStorage.COMPACT_LOG_BYTES);
+
+        assertEquals(count, load().size());
+    }
+
+    @MediumTest
+    public void testCorruptSnapshotFallsBackToLog() throws IOException {
+        BinaryLogSettingsStorage storage = newStorage();
+        storage.replaceAll(rows("old", "1"));
+        storage.write(rows("new", "2"), new ArraySet<String>());
+
+        overwrite(getSnapshotFile(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 });
+
+        ArrayMap<String, String> loaded = load();
+        assertEquals(1, loaded.size());
+        assertEquals("2", loaded.get("new"));
+    }
+
+    @MediumTest
+    public void testTornRecordIsDropped() throws IOException {
+        BinaryLogSettingsStorage storage = newStorage();
+        storage.load(new ArrayMap<String, String>());
+        storage.write(rows("a", "1"), new ArraySet<String>());
+        final long validLength = getLogFile().length();
+
+        // A record cut short after its length.
+        FileOutputStream out = new FileOutputStream(getLogFile(), true);
+        try {
+            out.write(new byte[] { 0, 0, 0, 100, 1, 2 });
+        } finally {
+            out.close();
+        }
+
+        storage = newStorage();
+        ArrayMap<String, String> loaded = new ArrayMap<>();
+        storage.load(loaded);
+        assertEquals("1", loaded.get("a"));
+        assertEquals(validLength, getLogFile().length());
+
+        // Appended after the cut, so the new record is replayed too.
+        storage.write(rows("b", "2"), new ArraySet<String>());
+        loaded = load();
+        assertEquals("1", loaded.get("a"));
+        assertEquals("2", loaded.get("b"));
+    }
+
+    /**
+     * Compares the load time, single-row write latency and on-disk size of both storages for a
+     * table of {@link #BENCHMARK_ROWS} rows. The files are in the page cache, so the loads only
+     * measure parsing and setup.
+     */
+    @LargeTest
+    public void testBenchmarkAgainstSqlite() {
+        ArrayMap<String, String> rows = new ArrayMap<>();
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            rows.put("benchmark_key_" + i, Integer.toString(i * 31));
+        }
+
+        Context context = new RenamingDelegatingContext(getContext(), "test_benchmark.");
+        AllianceDatabaseHelper dbHelper = new AllianceDatabaseHelper(context,
+                UserHandle.USER_OWNER);
+        try {
+            SqliteSettingsStorage sqlite = new SqliteSettingsStorage(dbHelper, TABLE);
+            sqlite.write(rows, new ArraySet<String>());
+            BinaryLogSettingsStorage binary = newStorage();
+            binary.replaceAll(rows);
+
+            final long sqliteWriteUs = measureWrites(sqlite);
+            final long binaryWriteUs = measureWrites(binary);
+            dbHelper.checkpoint();
+
+            long sqliteLoadUs = 0;
+            long binaryLoadUs = 0;
+            for (int i = 0; i < BENCHMARK_LOADS; i++) {
+                dbHelper.close();
+                long start = SystemClock.elapsedRealtimeNanos();
+                ArrayMap<String, String> loaded = new ArrayMap<>();
+                new SqliteSettingsStorage(dbHelper, TABLE).load(loaded);
+                sqliteLoadUs += (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+                assertEquals(BENCHMARK_ROWS, loaded.size());
+
+                start = SystemClock.elapsedRealtimeNanos();
+                loaded = load();
+                binaryLoadUs += (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+                assertEquals(BENCHMARK_ROWS, loaded.size());
+            }
+
+            final File dbFile = context.getDatabasePath(dbHelper.getDatabaseName());
+            final long sqliteBytes = dbFile.length()
+                    + new File(dbFile.getPath() + "-wal").length()
+                    + new File(dbFile.getPath() + "-shm").length();
+            final long binaryBytes = getSnapshotFile().length() + getLogFile().length();
+
+            Log.i(TAG, "load: sqlite=" + sqliteLoadUs / BENCHMARK_LOADS + "us, binary="
+                    + binaryLoadUs / BENCHMARK_LOADS + "us");
+            Log.i(TAG, "write: sqlite=" + sqliteWriteUs + "us, binary=" + binaryWriteUs + "us");
+            Log.i(TAG, "footprint: sqlite=" + sqliteBytes + "B, binary=" + binaryBytes + "B");
+        } finally {
+            dbHelper.close();
+            context.deleteDatabase(dbHelper.getDatabaseName());
+        }
+    }
+
+    /**
+     * @return The mean latency of a single-row write, in microseconds.
+     */
+    private static long measureWrites(SettingsStorage storage) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_WRITES; i++) {
+            storage.write(rows("benchmark_key_" + (i % BENCHMARK_ROWS), Integer.toString(i)),
+                    new ArraySet<String>());
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / 1000 / BENCHMARK_WRITES;
+    }
+
+    private BinaryLogSettingsStorage newStorage() {
+        return new BinaryLogSettingsStorage(mDirectory, TABLE);
+    }
+
+    private ArrayMap<String, String> load() {
+        ArrayMap<String, String> rows = new ArrayMap<>();
+        newStorage().load(rows);
+        return rows;
+    }
+
+    private File getSnapshotFile() {
+        return new File(mDirectory, "alliancesettings_" + TABLE + ".snapshot");
+    }
+
+    private File getLogFile() {
+        return new File(mDirectory, "alliancesettings_" + TABLE + ".log");
+    }
+
+    private static ArrayMap<String, String> rows(String... namesAndValues) {
+        ArrayMap<String, String> rows = new ArrayMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            rows.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return rows;
+    }
+
+    private static ArraySet<String> removals(String... names) {
+        ArraySet<String> removals = new ArraySet<>();
+        for (String name : names) {
+            removals.add(name);
+        }
+        return removals;
+    }
+
+    private static void overwrite(File file, byte[] contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, false);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+import android.util.DisplayMetrics;
+
+/**
+ * Tests the region-locked resources of {@link SettingsDefaults}, against the test resources
+ * that MCC 999 overrides.
+ */
+@SmallTest
+public class SettingsDefaultsTest extends AndroidTestCase {
+
+    private static final String TEST_MCC = "999";
+
+    private static final int[] STRING_IDS = {
+        R.string.test_region_string,
+        R.string.app_name,
+        R.string.config_settingsStorage,
+        R.string.config_walSyncMode,
+    };
+
+    public void testMccOverridesDefault() {
+        SettingsDefaults defaults = new SettingsDefaults(getContext(), TEST_MCC);
+        assertEquals("mcc999",
+                defaults.getRegionResources().getString(R.string.test_region_string));
+        // Strings the MCC does not override still resolve.
+        assertEquals(getContext().getString(R.string.app_name),
+                defaults.getRegionResources().getString(R.string.app_name));
+    }
+
+    public void testOtherMccUsesDefault() {
+        SettingsDefaults defaults = new SettingsDefaults(getContext(), "310");
+        assertEquals("default",
+                defaults.getRegionResources().getString(R.string.test_region_string));
+    }
+
+    public void testUnsetMccUsesPackageResources() {
+        SettingsDefaults defaults = new SettingsDefaults(getContext(), "");
+        assertSame(getContext().getResources(), defaults.getRegionResources());
+        assertEquals("default",
+                defaults.getRegionResources().getString(R.string.test_region_string));
+    }
+
+    public void testInvalidMccUsesPackageResources() {
+        SettingsDefaults defaults = new SettingsDefaults(getContext(), "abc");
+        assertSame(getContext().getResources(), defaults.getRegionResources());
+    }
+
+    public void testRegionResourcesAreBuiltOnce() {
+        SettingsDefaults defaults = new SettingsDefaults(getContext(), TEST_MCC);
+        assertSame(defaults.getRegionResources(), defaults.getRegionResources());
+    }
+
+    public void testRegionResourcesMatchPerCallLookup() {
+        for (String mcc : new String[] { TEST_MCC, "310", "", "abc" }) {
+            SettingsDefaults defaults = new SettingsDefaults(getContext(), mcc);
+            for (int resId : STRING_IDS) {
+                assertEquals("mcc " + mcc + ": "
+                        + getContext().getResources().getResourceEntryName(resId),
+                        loadRegionLockedString(mcc, resId),
+                        defaults.getRegionResources().getString(resId));
+            }
+        }
+    }
+
+    /**
+     * The lookup AllianceDatabaseHelper used to make for every region-locked setting, for the
+     * given MCC rather than the prebundled one.
+     */
+    private String loadRegionLockedString(String mcc, int resId) {
+        Resources customResources = null;
+        if (!TextUtils.isEmpty(mcc)) {
+            Configuration tempConfiguration = new Configuration();
+            boolean useTempConfig = false;
+            try {
+                tempConfiguration.mcc = Integer.parseInt(mcc);
+                useTempConfig = true;
+            } catch (NumberFormatException e) {
+                // Falls back to the default resources.
+            }
+            if (useTempConfig) {
+                AssetManager assetManager = new AssetManager();
+
+                String publicSrcDir = getContext().getApplicationInfo().publicSourceDir;
+                if (!TextUtils.isEmpty(publicSrcDir)) {
+                    assetManager.addAssetPath(publicSrcDir);
+                }
+                customResources = new Resources(assetManager, new DisplayMetrics(),
+                        tempConfiguration);
+            }
+        }
+
+        return customResources == null ? getContext().getResources().getString(resId)
+                : customResources.getString(resId);
+    }
+}
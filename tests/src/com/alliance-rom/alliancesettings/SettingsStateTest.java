@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 AllianceROM, ~Morningstar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alliance-rom.alliancesettings;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the batches of {@link SettingsState}.
+ */
+@SmallTest
+public class SettingsStateTest extends AndroidTestCase {
+
+    private static final String TABLE = AllianceDatabaseHelper.AllianceTableNames.TABLE_SYSTEM;
+    // Long enough for a writer that is not held up to finish.
+    private static final long SETTLE_MS = 100;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private HandlerThread mWriteThread;
+    private RecordingStorage mStorage;
+    private SettingsState mState;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWriteThread = new HandlerThread("SettingsStateTest");
+        mWriteThread.start();
+        mStorage = new RecordingStorage();
+        mStorage.mRows.put("existing", "1");
+        mStorage.mRows.put("removed", "2");
+        mState = new SettingsState(mStorage, TABLE, new ArrayMap<String, String>(),
+                new Handler(mWriteThread.getLooper()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWriteThread.quit();
+        super.tearDown();
+    }
+
+    public void testCommittedBatchIsWrittenAtOnce() {
+        mState.beginBatch();
+        mState.put("existing", "3");
+        mState.putAll(new String[] { "added", "other" }, new String[] { "4", "5" });
+        mState.removeAll(new String[] { "removed" });
+        mState.commitBatch();
+        mState.flush();
+
+        Write write = mStorage.findWrite("existing");
+        assertNotNull(write);
+        assertEquals("3", write.mWrites.get("existing"));
+        assertEquals("4", write.mWrites.get("added"));
+        assertEquals("5", write.mWrites.get("other"));
+        assertTrue(write.mRemovals.contains("removed"));
+    }
+
+    public void testAbortedBatchIsUndone() {
+        mState.beginBatch();
+        mState.put("existing", "3");
+        mState.put("added", "4");
+        mState.removeAll(new String[] { "removed" });
+        assertEquals("3", mState.getValue("existing"));
+        mState.abortBatch();
+        mState.flush();
+
+        assertEquals("1", mState.getValue("existing"));
+        assertEquals("2", mState.getValue("removed"));
+        assertFalse(mState.containsKey("added"));
+        assertNull(mStorage.findWrite("existing"));
+        assertNull(mStorage.findWrite("added"));
+        assertNull(mStorage.findWrite("removed"));
+    }
+
+    public void testFlushWithinBatchLeavesBatchPending() {
+        mState.put("before", "1");
+        mState.beginBatch();
+        mState.put("existing", "3");
+        mState.flush();
+
+        assertNotNull(mStorage.findWrite("before"));
+        assertNull(mStorage.findWrite("existing"));
+
+        mState.commitBatch();
+        mState.flush();
+        assertNotNull(mStorage.findWrite("existing"));
+    }
+
+    public void testBatchIsHiddenFromOtherThreads() throws Exception {
+        mState.beginBatch();
+        mState.put("existing", "3");
+        mState.put("added", "4");
+
+        final Object[] seen = new Object[3];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                seen[0] = mState.getValue("existing");
+                seen[1] = mState.containsKey("added");
+                seen[2] = mState.getAll();
+            }
+        });
+        reader.start();
+        reader.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertEquals("1", seen[0]);
+        assertEquals(Boolean.FALSE, seen[1]);
+        @SuppressWarnings("unchecked")
+        ArrayMap<String, String> rows = (ArrayMap<String, String>) seen[2];
+        assertEquals("1", rows.get("existing"));
+        assertFalse(rows.containsKey("added"));
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mState.put("existing", "5");
+            }
+        });
+        writer.start();
+        writer.join(SETTLE_MS);
+        assertTrue("Writer was not held up by the batch", writer.isAlive());
+
+        mState.commitBatch();
+        writer.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertFalse(writer.isAlive());
+        assertEquals("5", mState.getValue("existing"));
+        assertEquals("4", mState.getValue("added"));
+    }
+
+    private static final class Write {
+        final ArrayMap<String, String> mWrites;
+        final ArraySet<String> mRemovals;
+
+        Write(ArrayMap<String, String> writes, ArraySet<String> removals) {
+            mWrites = new ArrayMap<>(writes);
+            mRemovals = new ArraySet<>(removals);
+        }
+    }
+
+    private static final class RecordingStorage implements SettingsStorage {
+        final ArrayMap<String, String> mRows = new ArrayMap<>();
+        // Guarded by 'this'; the delayed flush may write on the write thread.
+        final ArrayList<Write> mWrites = new ArrayList<>();
+
+        @Override
+        public void load(ArrayMap<String, String> rows) {
+            rows.putAll(mRows);
+        }
+
+        @Override
+        public synchronized void write(ArrayMap<String, String> writes,
+                ArraySet<String> removals) {
+            mWrites.add(new Write(writes, removals));
+        }
+
+        synchronized Write findWrite(String name) {
+            for (Write write : mWrites) {
+                if (write.mWrites.containsKey(name) || write.mRemovals.contains(name)) {
+                    return write;
+                }
+            }
+            return null;
+        }
+    }
+}